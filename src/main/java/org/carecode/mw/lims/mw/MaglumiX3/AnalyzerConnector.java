@@ -0,0 +1,95 @@
+package org.carecode.mw.lims.mw.MaglumiX3;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Client-mode transport: dials the analyzer instead of waiting for it.
+ *
+ * One connection is held open for as long as the analyzer keeps it and every
+ * transmission runs through the same session, an {@link AnalyzerSession} for
+ * ASTM or an MLLP connection for HL7. When the link drops the connector dials
+ * again, backing off exponentially with jitter so that a restarting analyzer
+ * is not hammered.
+ */
+public class AnalyzerConnector {
+
+    private static final Logger logger = LogManager.getLogger(AnalyzerConnector.class);
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 10000;
+    private static final long INITIAL_BACKOFF_MILLIS = 500;
+    private static final long MAX_BACKOFF_MILLIS = 60000;
+    private static final long STABLE_CONNECTION_MILLIS = 30000;
+
+    private final Function<Socket, Runnable> sessionFactory;
+    private volatile boolean running;
+    private volatile Socket socket;
+
+    public AnalyzerConnector(MaglumiX3Server server) {
+        this(socket -> new AnalyzerSession(socket, server));
+    }
+
+    /**
+     * @param sessionFactory creates the session that runs a connection and
+     * returns once it has closed
+     */
+    public AnalyzerConnector(Function<Socket, Runnable> sessionFactory) {
+        this.sessionFactory = sessionFactory;
+    }
+
+    public void start(String host, int port) {
+        running = true;
+        long backoff = INITIAL_BACKOFF_MILLIS;
+        logger.info("Client mode, connecting to analyzer at " + host + ":" + port);
+        while (running) {
+            long connectedAt = 0;
+            try {
+                Socket s = new Socket();
+                s.setKeepAlive(true);
+                s.setTcpNoDelay(true);
+                s.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+                socket = s;
+                connectedAt = System.currentTimeMillis();
+                logger.info("Connected to analyzer " + host + ":" + port);
+                sessionFactory.apply(s).run();
+            } catch (IOException e) {
+                logger.warn("Could not connect to analyzer " + host + ":" + port + ": " + e.getMessage());
+            } finally {
+                socket = null;
+            }
+            if (!running) {
+                break;
+            }
+            if (connectedAt > 0 && System.currentTimeMillis() - connectedAt >= STABLE_CONNECTION_MILLIS) {
+                backoff = INITIAL_BACKOFF_MILLIS;
+            }
+            long delay = ThreadLocalRandom.current().nextLong(backoff / 2, backoff + 1);
+            logger.info("Reconnecting to analyzer in " + delay + " ms");
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+        }
+        logger.info("Client connector stopped.");
+    }
+
+    public void stop() {
+        running = false;
+        Socket s = socket;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                logger.error("Error closing analyzer connection", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package org.carecode.mw.lims.mw.MaglumiX3;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Non-blocking ASTM listener.
+ *
+ * A single selector thread accepts connections and moves bytes, while a pool
+ * of workers runs the {@link AnalyzerSession} state machine of whichever
+ * connection has data. A connection stops being read while its bytes are being
+ * processed, so each session only ever sees one worker at a time and its
+ * frames stay in order.
+ *
+ * A session may block its worker, while its results are forced to the journal
+ * or wait for room in the backlog. The pool therefore grows with the
+ * connections that have work, at most one thread each, rather than sharing a
+ * fixed number of threads: a blocked session holds up its own analyzer and
+ * never the frames of another one. Idle workers end after a minute.
+ */
+public class AnalyzerNioServer {
+
+    private static final Logger logger = LogManager.getLogger(AnalyzerNioServer.class);
+
+    private final MaglumiX3Server server;
+    private final Queue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private ExecutorService workers;
+    private volatile boolean running;
+
+    public AnalyzerNioServer(MaglumiX3Server server) {
+        this.server = server;
+    }
+
+    public void start(int port) {
+        try {
+            selector = Selector.open();
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            workers = Executors.newCachedThreadPool(new WorkerThreadFactory());
+            running = true;
+            logger.info("NIO server started on port " + port);
+
+            while (running) {
+                selector.select();
+                runSelectorTasks();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            if (key.isWritable()) {
+                                ((Connection) key.attachment()).write();
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                ((Connection) key.attachment()).read();
+                            }
+                        }
+                    } catch (IOException e) {
+                        logger.error("Error handling client connection", e);
+                        if (key.attachment() instanceof Connection) {
+                            ((Connection) key.attachment()).close();
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Error starting NIO server on port " + port, e);
+        } finally {
+            stop();
+        }
+    }
+
+    public void stop() {
+        running = false;
+        try {
+            if (serverChannel != null && serverChannel.isOpen()) {
+                serverChannel.close();
+            }
+            if (selector != null && selector.isOpen()) {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof Connection) {
+                        ((Connection) key.attachment()).close();
+                    }
+                }
+                selector.close();
+                logger.info("NIO server stopped.");
+            }
+        } catch (IOException e) {
+            logger.error("Error stopping NIO server", e);
+        }
+        if (workers != null) {
+            workers.shutdownNow();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setKeepAlive(true);
+        String remoteAddress = ((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress();
+        logger.info("New client connected: " + remoteAddress);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        key.attach(new Connection(channel, key, remoteAddress));
+    }
+
+    private void runSelectorTasks() {
+        Runnable task;
+        while ((task = selectorTasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void onSelectorThread(Runnable task) {
+        selectorTasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Per-connection buffers, pending writes and the session that owns the
+     * protocol state.
+     */
+    private class Connection {
+
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final String remoteAddress;
+        private final ByteBuffer readBuffer = ByteBufferPool.READ_BUFFERS.acquire();
+        private final Queue<ByteBuffer> pendingWrites = new ArrayDeque<>();
+        private final AnalyzerSession session;
+        private boolean processing;
+        private boolean closed;
+
+        Connection(SocketChannel channel, SelectionKey key, String remoteAddress) {
+            this.channel = channel;
+            this.key = key;
+            this.remoteAddress = remoteAddress;
+            this.session = new AnalyzerSession(remoteAddress, new ChannelOutputStream(this), () -> onSelectorThread(this::close), server);
+        }
+
+        void read() throws IOException {
+            int count = channel.read(readBuffer);
+            if (count == -1) {
+                logger.debug("Connection closed by analyzer " + remoteAddress);
+                close();
+                return;
+            }
+            if (count == 0) {
+                return;
+            }
+            readBuffer.flip();
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            synchronized (this) {
+                processing = true;
+            }
+            workers.execute(this::process);
+        }
+
+        private void process() {
+            try {
+                session.receive(readBuffer);
+            } catch (IOException | RuntimeException e) {
+                logger.error("Error during client communication with " + remoteAddress, e);
+            } finally {
+                readBuffer.clear();
+                synchronized (this) {
+                    processing = false;
+                    if (closed) {
+                        releaseBuffers();
+                    }
+                }
+                onSelectorThread(this::resumeReading);
+            }
+        }
+
+        private void resumeReading() {
+            if (key.isValid()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+        }
+
+        void enqueue(ByteBuffer data) {
+            onSelectorThread(() -> {
+                if (!key.isValid()) {
+                    return;
+                }
+                pendingWrites.add(data);
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            });
+        }
+
+        void write() throws IOException {
+            while (!pendingWrites.isEmpty()) {
+                ByteBuffer head = pendingWrites.peek();
+                channel.write(head);
+                if (head.hasRemaining()) {
+                    return;
+                }
+                pendingWrites.poll();
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+
+        void close() {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.error("Error closing connection to " + remoteAddress, e);
+            }
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                if (!processing) {
+                    releaseBuffers();
+                }
+            }
+            logger.info("Session ended for " + remoteAddress);
+        }
+
+        private void releaseBuffers() {
+            session.close();
+            ByteBufferPool.READ_BUFFERS.release(readBuffer);
+        }
+    }
+
+    /**
+     * Collects what the session writes and hands it to the selector thread on
+     * every flush.
+     */
+    private static class ChannelOutputStream extends ByteArrayOutputStream {
+
+        private final Connection connection;
+
+        ChannelOutputStream(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public synchronized void flush() {
+            if (count == 0) {
+                return;
+            }
+            connection.enqueue(ByteBuffer.wrap(toByteArray()));
+            reset();
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "analyzer-nio-worker-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
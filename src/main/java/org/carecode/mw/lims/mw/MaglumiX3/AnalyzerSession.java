@@ -0,0 +1,655 @@
+package org.carecode.mw.lims.mw.MaglumiX3;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.carecode.lims.libraries.DataBundle;
+import org.carecode.lims.libraries.OrderRecord;
+import org.carecode.lims.libraries.PatientRecord;
+import org.carecode.lims.libraries.QueryRecord;
+import org.carecode.lims.libraries.ResultsRecord;
+
+/**
+ * ASTM conversation with a single connected analyzer.
+ *
+ * Every connection gets its own session so that the query/response flags,
+ * the data bundle and the sample ID of one analyzer can never leak into the
+ * conversation of another one.
+ */
+public class AnalyzerSession implements Runnable, AstmFrameDecoder.Listener {
+
+    private static final Logger logger = LogManager.getLogger(AnalyzerSession.class);
+
+    private static final char ENQ = 0x05;
+    private static final char ACK = 0x06;
+    private static final char EOT = 0x04;
+    private static final char NAK = 0x15;
+
+    // ASTM E1381: a frame is given up after six unsuccessful attempts
+    private static final int MAX_RETRANSMISSIONS = 6;
+    // ASTM E1381: the sender waits 15 s for a reply, the receiver 30 s for a frame
+    private static final long REPLY_TIMEOUT_MILLIS = 15000;
+    private static final long RECEIVE_TIMEOUT_MILLIS = 30000;
+    // a connection with no traffic at all for this long is treated as dead
+    private static final long IDLE_TIMEOUT_MILLIS = 15 * 60 * 1000;
+    private static final long BUSY_RETRY_MILLIS = 1000;
+
+    private final Socket clientSocket;
+    private final MaglumiX3Server server;
+    private final String remoteAddress;
+    // the analyzer the results come from, the same after a reconnect
+    private final String source;
+    private OutputStream out;
+    private AstmFrameWriter frameWriter;
+    private final AstmFrameDecoder decoder = new AstmFrameDecoder(this);
+    private final AstmRecordAssembler assembler = new AstmRecordAssembler();
+    private final AstmFieldCursor fields = new AstmFieldCursor();
+    private final AstmMessageIndex records = new AstmMessageIndex();
+    private int rejectedFrames;
+    private int sendAttempts;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Runnable closeHandler;
+    private final long hostQueryDeadlineMillis = SettingsLoader.getPerformanceSetting("hostQueryDeadlineMillis", 10000);
+    private volatile long lastActivity = System.nanoTime();
+    private volatile boolean closed;
+    private HashedTimerWheel.Timeout protocolTimer;
+    private int protocolTimerGeneration;
+    private HashedTimerWheel.Timeout idleTimer;
+
+    boolean receivingQuery;
+    boolean receivingResults;
+    boolean respondingQuery;
+    boolean respondingResults;
+
+    // records still to be sent in the current host query reply, one per ACK
+    private final Deque<String> outboundRecords = new ArrayDeque<>();
+    // LIS order lookups started as the query records came in
+    private final Map<QueryRecord, CompletableFuture<DataBundle>> pendingOrders = new IdentityHashMap<>();
+    // counts the transfers, so an order reply that is late finds out its transfer is over
+    private int transferNumber;
+
+    private DataBundle patientDataBundle = new DataBundle();
+
+    String sampleId;
+    PatientRecord patientRecord;
+    ResultsRecord resultRecord;
+    QueryRecord queryRecord;
+
+    /**
+     * Creates a session that owns a blocking socket and runs on its own
+     * thread.
+     */
+    public AnalyzerSession(Socket clientSocket, MaglumiX3Server server) {
+        this.clientSocket = clientSocket;
+        this.server = server;
+        this.remoteAddress = clientSocket.getInetAddress().getHostAddress();
+        this.source = ResultDeduplicator.analyzerSource(remoteAddress);
+        this.closeHandler = () -> {
+            try {
+                clientSocket.close();
+            } catch (IOException e) {
+                logger.error("Error closing connection to " + remoteAddress, e);
+            }
+        };
+        scheduleIdleCheck(IDLE_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Creates a session driven by an event loop, which pushes received bytes
+     * through {@link #receive(ByteBuffer)} and delivers everything written to
+     * {@code out} back to the analyzer. {@code closeHandler} is run when the
+     * session gives up on an idle connection.
+     */
+    AnalyzerSession(String remoteAddress, OutputStream out, Runnable closeHandler, MaglumiX3Server server) {
+        this.clientSocket = null;
+        this.server = server;
+        this.remoteAddress = remoteAddress;
+        this.source = ResultDeduplicator.analyzerSource(remoteAddress);
+        this.out = out;
+        this.frameWriter = new AstmFrameWriter(out);
+        this.closeHandler = closeHandler;
+        scheduleIdleCheck(IDLE_TIMEOUT_MILLIS);
+    }
+
+    @Override
+    public void run() {
+        logger.info("Session started for " + remoteAddress);
+        ByteBuffer buffer = ByteBufferPool.READ_BUFFERS.acquire();
+        try (Socket socket = clientSocket;
+                InputStream in = socket.getInputStream();
+                OutputStream socketOut = new BufferedOutputStream(socket.getOutputStream())) {
+            out = socketOut;
+            frameWriter = new AstmFrameWriter(out);
+            int count;
+            while ((count = in.read(buffer.array(), buffer.arrayOffset(), buffer.capacity())) != -1) {
+                buffer.position(0).limit(count);
+                receive(buffer);
+            }
+            logger.debug("Connection closed by analyzer");
+        } catch (IOException e) {
+            logger.error("Error during client communication", e);
+        } finally {
+            ByteBufferPool.READ_BUFFERS.release(buffer);
+            close();
+        }
+        logger.info("Session ended for " + remoteAddress);
+    }
+
+    /**
+     * Feeds bytes received from the analyzer through the ENQ/STX/ETX/EOT
+     * handling. A frame may be split across any number of calls.
+     */
+    void receive(ByteBuffer data) throws IOException {
+        lastActivity = System.nanoTime();
+        lock.lock();
+        try {
+            decoder.decode(data);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops the timers and releases the buffers held by this session.
+     */
+    void close() {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            cancelProtocolTimer();
+            if (idleTimer != null) {
+                idleTimer.cancel();
+            }
+            decoder.release();
+            assembler.release();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void startProtocolTimer(long delayMillis, Runnable onExpiry) {
+        cancelProtocolTimer();
+        int generation = protocolTimerGeneration;
+        protocolTimer = HashedTimerWheel.shared().schedule(() -> expireProtocolTimer(generation, onExpiry), delayMillis);
+    }
+
+    private void cancelProtocolTimer() {
+        protocolTimerGeneration++;
+        if (protocolTimer != null) {
+            protocolTimer.cancel();
+            protocolTimer = null;
+        }
+    }
+
+    /**
+     * Runs on the timer thread. A session that is busy processing data is not
+     * stuck, so the check is simply repeated a little later instead of
+     * blocking the shared timer thread on the session lock.
+     */
+    private void expireProtocolTimer(int generation, Runnable onExpiry) {
+        if (!lock.tryLock()) {
+            HashedTimerWheel.shared().schedule(() -> expireProtocolTimer(generation, onExpiry), BUSY_RETRY_MILLIS);
+            return;
+        }
+        try {
+            if (!closed && generation == protocolTimerGeneration) {
+                protocolTimer = null;
+                onExpiry.run();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onReceiveTimeout() {
+        logger.warn("No frame from analyzer " + remoteAddress + " within " + RECEIVE_TIMEOUT_MILLIS / 1000 + " s, discarding the incomplete transfer");
+        decoder.reset();
+        assembler.reset();
+        rejectedFrames = 0;
+    }
+
+    private void onReplyTimeout() {
+        logger.warn("Analyzer " + remoteAddress + " did not reply within " + REPLY_TIMEOUT_MILLIS / 1000 + " s, aborting transfer");
+        frameWriter.clear();
+        sendAttempts = 0;
+        outboundRecords.clear();
+        respondingQuery = false;
+        try {
+            out.write(EOT);
+            out.flush();
+        } catch (IOException e) {
+            logger.error("Failed to send EOT", e);
+        }
+    }
+
+    private void scheduleIdleCheck(long delayMillis) {
+        idleTimer = HashedTimerWheel.shared().schedule(this::checkIdle, delayMillis);
+    }
+
+    private void checkIdle() {
+        if (closed) {
+            return;
+        }
+        long idleMillis = (System.nanoTime() - lastActivity) / 1000000;
+        if (idleMillis < IDLE_TIMEOUT_MILLIS) {
+            scheduleIdleCheck(IDLE_TIMEOUT_MILLIS - idleMillis);
+            return;
+        }
+        logger.warn("No traffic from analyzer " + remoteAddress + " for " + idleMillis / 1000 + " s, closing the connection");
+        closeHandler.run();
+    }
+
+    @Override
+    public void onControl(int data) throws IOException {
+        switch (data) {
+            case ENQ:
+                logger.debug("Received ENQ");
+                if (!ResultUploadQueue.getInstance().isAcceptingTransfers()) {
+                    // E1381: a receiver that is not ready answers ENQ with NAK and the sender tries again later
+                    out.write(NAK);
+                    out.flush();
+                    logger.warn("Result backlog full, refused a transfer from " + remoteAddress);
+                    break;
+                }
+                assembler.reset();
+                startTransfer();
+                out.write(ACK);
+                out.flush();
+                logger.debug("Sent ACK");
+                startProtocolTimer(RECEIVE_TIMEOUT_MILLIS, this::onReceiveTimeout);
+                break;
+            case ACK:
+                logger.debug("ACK Received.");
+                cancelProtocolTimer();
+                sendAttempts = 0;
+                handleAck();
+                break;
+            case NAK:
+                logger.debug("NAK Received.");
+                cancelProtocolTimer();
+                handleNak();
+                break;
+            case EOT:
+                logger.debug("EOT Received");
+                rejectedFrames = 0;
+                cancelProtocolTimer();
+                assembler.reset();
+                handleEot();
+                break;
+            default:
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Received unexpected data: " + (char) data + " (ASCII: " + data + ")");
+                }
+                break;
+        }
+    }
+
+    @Override
+    public void onFrame(ByteBuffer frame, boolean last) throws IOException {
+        startProtocolTimer(RECEIVE_TIMEOUT_MILLIS, this::onReceiveTimeout);
+        switch (assembler.add(frame, last)) {
+            case RECORD:
+                String message = StandardCharsets.ISO_8859_1.decode(assembler.record()).toString();
+                logger.debug("Message received: " + message);
+                if (!processMessage(message)) {
+                    onInvalidFrame("results could not be queued");
+                    return;
+                }
+                break;
+            case PENDING:
+                logger.debug("Intermediate frame received, waiting for the rest of the record");
+                break;
+            case DUPLICATE:
+                break;
+            case OUT_OF_SEQUENCE:
+                onInvalidFrame("frame out of sequence");
+                return;
+            default:
+                onInvalidFrame("record longer than " + AstmFrameDecoder.MAX_FRAME_SIZE + " bytes");
+                return;
+        }
+        rejectedFrames = 0;
+        out.write(ACK);
+        out.flush();
+        logger.debug("Sent ACK after STX-ETX block");
+    }
+
+    @Override
+    public void onInvalidFrame(String reason) throws IOException {
+        startProtocolTimer(RECEIVE_TIMEOUT_MILLIS, this::onReceiveTimeout);
+        rejectedFrames++;
+        out.write(NAK);
+        out.flush();
+        logger.debug("Sent NAK (" + reason + "), attempt " + rejectedFrames + " of " + MAX_RETRANSMISSIONS);
+        if (rejectedFrames >= MAX_RETRANSMISSIONS) {
+            logger.error("Analyzer " + remoteAddress + " failed to deliver a frame after " + MAX_RETRANSMISSIONS + " attempts");
+            rejectedFrames = 0;
+        }
+    }
+
+    /**
+     * The analyzer rejected the last frame we sent: send it again until the
+     * retransmission limit is reached, then abort the transfer with EOT.
+     */
+    private void handleNak() throws IOException {
+        if (!frameWriter.hasFrame()) {
+            logger.debug("NAK received with no frame outstanding");
+            return;
+        }
+        if (++sendAttempts < MAX_RETRANSMISSIONS) {
+            logger.debug("Retransmitting frame, attempt " + (sendAttempts + 1));
+            frameWriter.resend();
+            startProtocolTimer(REPLY_TIMEOUT_MILLIS, this::onReplyTimeout);
+            return;
+        }
+        logger.error("Analyzer " + remoteAddress + " rejected a frame " + MAX_RETRANSMISSIONS + " times, aborting transfer");
+        frameWriter.clear();
+        sendAttempts = 0;
+        outboundRecords.clear();
+        respondingQuery = false;
+        out.write(EOT);
+        out.flush();
+    }
+
+    private void handleAck() throws IOException {
+        String record = outboundRecords.poll();
+        if (record != null) {
+            sendResponse(record);
+            if (outboundRecords.isEmpty()) {
+                receivingQuery = false;
+                receivingResults = false;
+                respondingQuery = false;
+                respondingResults = false;
+            }
+        } else {
+            out.write(EOT);
+            out.flush();
+            logger.debug("Sent EOT");
+        }
+    }
+
+    /**
+     * Forgets what the previous transfer left behind. The analyzer sends one
+     * record per frame, so the header record never reaches the record switch
+     * and the ENQ is the only reliable start of a transfer.
+     */
+    private void startTransfer() {
+        transferNumber++;
+        patientDataBundle = new DataBundle();
+        pendingOrders.clear();
+        sampleId = null;
+        receivingQuery = false;
+        receivingResults = false;
+        respondingQuery = false;
+        respondingResults = false;
+    }
+
+    /**
+     * Records a query and starts looking up its orders right away, so the LIS
+     * works while the analyzer is still sending the rest of the message. A
+     * sample is only queried once per transfer, though its O and Q records
+     * both ask for it.
+     */
+    private void addQuery(QueryRecord query) {
+        for (QueryRecord queried : getPatientDataBundle().getQueryRecords()) {
+            if (Objects.equals(queried.getSampleId(), query.getSampleId())) {
+                logger.debug("Sample " + query.getSampleId() + " already queried");
+                return;
+            }
+        }
+        getPatientDataBundle().getQueryRecords().add(query);
+        pendingOrders.put(query, OrderCache.getInstance().getOrdersAsync(query));
+    }
+
+    /**
+     * Queues the complete reply to the samples queried in this transfer,
+     * header to terminator, so that the whole rack is answered in a single
+     * ENQ...EOT transfer. Called once the order lookups have finished or the
+     * reply deadline has passed.
+     */
+    private void queueOrderReply() {
+        outboundRecords.clear();
+        outboundRecords.add(server.createLimsHeaderRecord());
+        int frameNumber = 2;
+        int patientSequence = 1;
+        boolean ordersFound = false;
+        for (QueryRecord query : getPatientDataBundle().getQueryRecords()) {
+            DataBundle orders = completedOrders(query);
+            if (orders == null || orders.getOrderRecords().isEmpty()) {
+                logger.info("No orders found for sample " + query.getSampleId());
+                continue;
+            }
+            ordersFound = true;
+            // cached orders are shared between sessions, and the records are
+            // renumbered for every reply
+            synchronized (orders) {
+                PatientRecord patient = orders.getPatientRecord();
+                if (patient == null) {
+                    patient = new PatientRecord(0, query.getSampleId(), "", "", "", "", "", "", "", "", "");
+                }
+                if (patient.getPatientName() == null) {
+                    patient.setPatientName("Buddhika");
+                }
+                patient.setFrameNumber(frameNumber);
+                outboundRecords.add(server.createLimsPatientRecord(patient, patientSequence++));
+                frameNumber = nextFrameNumber(frameNumber);
+                for (OrderRecord order : orders.getOrderRecords()) {
+                    order.setFrameNumber(frameNumber);
+                    outboundRecords.add(server.createLimsOrderRecord(order));
+                    frameNumber = nextFrameNumber(frameNumber);
+                }
+            }
+        }
+        // E1394 termination code I: no information available for the query
+        char terminationCode = ordersFound ? 'N' : 'I';
+        outboundRecords.add(server.createLimsTerminationRecord(frameNumber, terminationCode));
+        logger.debug("Queued " + outboundRecords.size() + " records for " + getPatientDataBundle().getQueryRecords().size() + " queried samples");
+        // answered; a later query for the same samples is looked up again
+        getPatientDataBundle().getQueryRecords().clear();
+        pendingOrders.clear();
+    }
+
+    /**
+     * The orders of a query, if its lookup has finished. A lookup that
+     * missed the deadline is answered as "no orders" but left running, so its
+     * answer is in the order cache when the analyzer asks again.
+     */
+    private DataBundle completedOrders(QueryRecord query) {
+        CompletableFuture<DataBundle> orders = pendingOrders.remove(query);
+        if (orders == null || !orders.isDone()) {
+            logger.warn("LIS did not return the orders of sample " + query.getSampleId() + " within " + hostQueryDeadlineMillis + " ms");
+            return null;
+        }
+        try {
+            return orders.join();
+        } catch (CompletionException | CancellationException e) {
+            logger.error("Order lookup for sample " + query.getSampleId() + " failed", e.getCause() == null ? e : e.getCause());
+            return null;
+        }
+    }
+
+    /**
+     * Sends the order reply once every lookup of the transfer has finished or
+     * the reply deadline has passed. No thread waits for the LIS meanwhile,
+     * so a slow LIS never holds up the frames of other analyzers.
+     */
+    private void replyWhenOrdersArrive() {
+        int transfer = transferNumber;
+        CompletableFuture.allOf(pendingOrders.values().toArray(new CompletableFuture<?>[0]))
+                .completeOnTimeout(null, hostQueryDeadlineMillis, TimeUnit.MILLISECONDS)
+                .whenCompleteAsync((ignored, failure) -> sendOrderReply(transfer));
+    }
+
+    private void sendOrderReply(int transfer) {
+        lock.lock();
+        try {
+            if (closed || transfer != transferNumber) {
+                logger.debug("Transfer ended before its orders arrived, no reply sent");
+                return;
+            }
+            queueOrderReply();
+            logger.debug("Starting Transmission to send test requests");
+            out.write(ENQ);
+            out.flush();
+            logger.debug("Sent ENQ");
+            startProtocolTimer(REPLY_TIMEOUT_MILLIS, this::onReplyTimeout);
+        } catch (IOException e) {
+            logger.error("Failed to send ENQ to " + remoteAddress, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static int nextFrameNumber(int frameNumber) {
+        return (frameNumber + 1) % 8;
+    }
+
+    private void sendResponse(String response) {
+        try {
+            sendAttempts = 0;
+            frameWriter.writeFrame(response);
+            startProtocolTimer(REPLY_TIMEOUT_MILLIS, this::onReplyTimeout);
+            logger.debug("Response sent: " + response);
+        } catch (IOException e) {
+            logger.error("Failed to send response", e);
+        }
+    }
+
+    private void handleEot() throws IOException {
+        logger.debug("Handling eot");
+        logger.debug(respondingQuery);
+        if (respondingQuery) {
+            replyWhenOrdersArrive();
+        } else if (respondingResults) {
+            if (!ResultUploadQueue.getInstance().submit(patientDataBundle, source)) {
+                logger.error("Could not queue the results of " + remoteAddress);
+            }
+        } else {
+            logger.debug("Received EOT, ending session");
+        }
+    }
+
+    /**
+     * @return false when the record could not be accepted and the frame has
+     * to be NAKed
+     */
+    private boolean processMessage(String data) {
+        if (fields.useHeaderDelimiters(data)) {
+            logger.debug("Delimiters declared by the analyzer: " + fields.getFieldDelimiter() + fields.getRepeatDelimiter()
+                    + fields.getComponentDelimiter() + fields.getEscapeCharacter());
+        }
+
+        records.scan(data, fields.getFieldDelimiter());
+        // typed by the index as well, past a frame number such as the 1 of 1R|
+        char recordType = records.size() > 0 ? records.type(0) : 0;
+
+        // the O record usually comes in a frame of its own, before the results of its sample
+        int order = records.first('O');
+        if (order >= 0) {
+            String orderSampleId = MaglumiX3Server.extractSampleIdFromOrderRecord(records.select(fields, order));
+            if (orderSampleId != null) {
+                sampleId = orderSampleId.trim();
+            }
+        }
+
+        if (records.contains('R')) {
+            boolean isAresultMessage = server.processResultMessage(data);
+            if (isAresultMessage) {
+                return server.handleResultMessage(data, records, fields, sampleId, source);
+            }
+        } else if (records.contains('Q')) {
+
+        } else {
+            return true;
+        }
+
+        switch (recordType) {
+            case 'H': // Header Record
+                patientDataBundle = new DataBundle();
+                receivingQuery = false;
+                receivingResults = false;
+                respondingQuery = false;
+                respondingResults = false;
+                outboundRecords.clear();
+                pendingOrders.clear();
+                logger.debug("Header Record Received: " + data);
+                break;
+            case 'R': // Result Record
+                logger.debug("Result Record Received: " + data);
+                respondingResults = true;
+                respondingQuery = false;
+                resultRecord = MaglumiX3Server.parseResultsRecord(fields.reset(data), sampleId);
+                getPatientDataBundle().getResultsRecords().add(resultRecord);
+                logger.debug("Result Record Parsed: " + resultRecord);
+                break;
+            case 'Q': // Query Record
+                receivingQuery = false;
+
+                respondingQuery = true;
+                logger.debug("Query Record Received: " + data);
+                queryRecord = MaglumiX3Server.parseQueryRecord(fields, data);
+                sampleId = queryRecord.getSampleId();
+                addQuery(queryRecord);
+                logger.debug("Parsed the Query Record: " + queryRecord);
+                break;
+            case 'P': // Patient Record
+                logger.debug("Patient Record Received: " + data);
+                patientRecord = MaglumiX3Server.parsePatientRecord(fields.reset(data));
+                getPatientDataBundle().setPatientRecord(patientRecord);
+                logger.debug("Patient Record Parsed: " + patientRecord);
+                break;
+            case 'L': // Termination Record
+                logger.debug("Termination Record Received: " + data);
+                break;
+            case 'C': // Comment Record
+                logger.debug("Comment Record Received: " + data);
+
+                break;
+            case 'O': // Order Record or other type represented by 'O'
+                logger.debug("Query Record Received: " + data);
+                String tmpSampleId = MaglumiX3Server.extractSampleIdFromOrderRecord(fields.reset(data));
+                logger.debug("Sample ID of the order record: " + tmpSampleId);
+                sampleId = tmpSampleId;
+                QueryRecord qr = new QueryRecord(0, sampleId, sampleId, "");
+                addQuery(qr);
+                logger.debug("Parsed the Query Record: " + queryRecord);
+                break;
+            default: // Unknown Record
+                logger.debug("Unknown Record Received: " + data);
+                break;
+        }
+        return true;
+    }
+
+    public DataBundle getPatientDataBundle() {
+        if (patientDataBundle == null) {
+            patientDataBundle = new DataBundle();
+        }
+        return patientDataBundle;
+    }
+
+    public void setPatientDataBundle(DataBundle patientDataBundle) {
+        this.patientDataBundle = patientDataBundle;
+    }
+
+}
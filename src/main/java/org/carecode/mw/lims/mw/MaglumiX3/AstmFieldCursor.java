@@ -0,0 +1,294 @@
+package org.carecode.mw.lims.mw.MaglumiX3;
+
+import java.nio.CharBuffer;
+import java.util.List;
+
+/**
+ * Reads the fields, repeats and components of one ASTM record by index.
+ *
+ * {@link #reset(CharSequence, int, int)} scans the record once and remembers
+ * where each field starts; nothing is copied. A value only becomes a
+ * {@code String} when it is asked for with {@link #field(int)} or
+ * {@link #component(int, int)}, so mapping a record to a library object costs
+ * one string per value that is actually used. The cursor is reusable and not
+ * thread safe; each session keeps its own.
+ *
+ * The delimiters are the ones the analyzer declared in its H record
+ * ({@link #useHeaderDelimiters(CharSequence)}), the usual
+ * {@code | \ ^ &} until a header has been seen. Escape sequences never contain
+ * a delimiter, so values are returned as transmitted, escapes included.
+ */
+public class AstmFieldCursor {
+
+    public static final char DEFAULT_FIELD_DELIMITER = '|';
+    public static final char DEFAULT_REPEAT_DELIMITER = '\\';
+    public static final char DEFAULT_COMPONENT_DELIMITER = '^';
+    public static final char DEFAULT_ESCAPE_CHARACTER = '&';
+
+    private char fieldDelimiter = DEFAULT_FIELD_DELIMITER;
+    private char repeatDelimiter = DEFAULT_REPEAT_DELIMITER;
+    private char componentDelimiter = DEFAULT_COMPONENT_DELIMITER;
+    private char escapeCharacter = DEFAULT_ESCAPE_CHARACTER;
+
+    private CharSequence text = "";
+    private int recordEnd;
+    // fieldStarts[i] is the first character of field i; a field ends one
+    // character before the next field starts, the last one at recordEnd
+    private int[] fieldStarts = new int[32];
+    private int fieldCount;
+
+    // bounds of the value found by the last select()
+    private int valueStart;
+    private int valueEnd;
+
+    /**
+     * Takes the delimiters from an H record, which declares them in the four
+     * characters following the {@code H}: field, repeat, component, escape.
+     * A leading frame number is skipped.
+     *
+     * @return false when the text is not an H record and the delimiters were
+     * left as they were
+     */
+    public boolean useHeaderDelimiters(CharSequence header) {
+        int h = 0;
+        while (h < header.length() && Character.isDigit(header.charAt(h))) {
+            h++;
+        }
+        if (h + 4 >= header.length() || header.charAt(h) != 'H') {
+            return false;
+        }
+        fieldDelimiter = header.charAt(h + 1);
+        repeatDelimiter = header.charAt(h + 2);
+        componentDelimiter = header.charAt(h + 3);
+        escapeCharacter = header.charAt(h + 4);
+        return true;
+    }
+
+    /**
+     * Sets the delimiters directly, for text that does not start with an
+     * ASTM H record, such as the segments of an HL7 message.
+     */
+    public void useDelimiters(char field, char repeat, char component, char escape) {
+        fieldDelimiter = field;
+        repeatDelimiter = repeat;
+        componentDelimiter = component;
+        escapeCharacter = escape;
+    }
+
+    public char getFieldDelimiter() {
+        return fieldDelimiter;
+    }
+
+    public char getRepeatDelimiter() {
+        return repeatDelimiter;
+    }
+
+    public char getComponentDelimiter() {
+        return componentDelimiter;
+    }
+
+    public char getEscapeCharacter() {
+        return escapeCharacter;
+    }
+
+    public AstmFieldCursor reset(CharSequence record) {
+        return reset(record, 0, record.length());
+    }
+
+    /**
+     * Points the cursor at the record starting at {@code from}. The record
+     * ends at {@code to} or at the first carriage return or line feed,
+     * whichever comes first.
+     */
+    public AstmFieldCursor reset(CharSequence text, int from, int to) {
+        this.text = text;
+        fieldCount = 0;
+        addField(from);
+        int i = from;
+        for (; i < to; i++) {
+            char c = text.charAt(i);
+            if (c == '\r' || c == '\n') {
+                break;
+            }
+            if (c == fieldDelimiter) {
+                addField(i + 1);
+            }
+        }
+        recordEnd = i;
+        return this;
+    }
+
+    private void addField(int start) {
+        if (fieldCount == fieldStarts.length) {
+            int[] grown = new int[fieldStarts.length * 2];
+            System.arraycopy(fieldStarts, 0, grown, 0, fieldCount);
+            fieldStarts = grown;
+        }
+        fieldStarts[fieldCount++] = start;
+    }
+
+    public int fieldCount() {
+        return fieldCount;
+    }
+
+    /**
+     * The record type, the first letter after the frame number, or 0 for an
+     * empty record.
+     */
+    public char recordType() {
+        for (int i = fieldStarts[0]; i < fieldEnd(0); i++) {
+            char c = text.charAt(i);
+            if (!Character.isDigit(c)) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * The digits in the first field, which is the frame number when the
+     * record still carries it; 0 when there are none.
+     */
+    public int frameNumber() {
+        int frameNumber = 0;
+        for (int i = fieldStarts[0]; i < fieldEnd(0); i++) {
+            char c = text.charAt(i);
+            if (c >= '0' && c <= '9') {
+                frameNumber = frameNumber * 10 + (c - '0');
+            }
+        }
+        return frameNumber;
+    }
+
+    /**
+     * @return the field, or an empty string when the record is shorter
+     */
+    public String field(int field) {
+        return select(field, -1, -1) ? value() : "";
+    }
+
+    /**
+     * Compares a field with a value without copying the field.
+     */
+    public boolean fieldEquals(int field, CharSequence value) {
+        if (!select(field, -1, -1) || valueEnd - valueStart != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (text.charAt(valueStart + i) != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Component of the first repeat of a field.
+     *
+     * @return the component, or an empty string when it is not there
+     */
+    public String component(int field, int component) {
+        return component(field, 0, component);
+    }
+
+    public String component(int field, int repeat, int component) {
+        return select(field, repeat, component) ? value() : "";
+    }
+
+    /**
+     * @return the repeat, components included, or an empty string when it is
+     * not there
+     */
+    public String repeat(int field, int repeat) {
+        return select(field, repeat, -1) ? value() : "";
+    }
+
+    /**
+     * The component as a view on the record, without copying it.
+     *
+     * @return the component, or null when it is not there
+     */
+    public CharSequence componentView(int field, int component) {
+        return select(field, 0, component) ? CharBuffer.wrap(text, valueStart, valueEnd) : null;
+    }
+
+    public boolean hasComponent(int field, int component) {
+        return select(field, 0, component);
+    }
+
+    public int repeatCount(int field) {
+        return field < fieldCount ? count(fieldStarts[field], fieldEnd(field), repeatDelimiter) : 0;
+    }
+
+    public int componentCount(int field) {
+        return select(field, 0, -1) ? count(valueStart, valueEnd, componentDelimiter) : 0;
+    }
+
+    /**
+     * Adds the components of every repeat of a field that are not empty, as
+     * in {@code ^^^TSH\^^^FT4}.
+     */
+    public void nonEmptyComponents(int field, List<String> target) {
+        if (field >= fieldCount) {
+            return;
+        }
+        int start = fieldStarts[field];
+        int end = fieldEnd(field);
+        for (int i = start; i <= end; i++) {
+            if (i == end || text.charAt(i) == componentDelimiter || text.charAt(i) == repeatDelimiter) {
+                if (i > start) {
+                    target.add(text.subSequence(start, i).toString());
+                }
+                start = i + 1;
+            }
+        }
+    }
+
+    private int fieldEnd(int field) {
+        return field + 1 < fieldCount ? fieldStarts[field + 1] - 1 : recordEnd;
+    }
+
+    /**
+     * Narrows valueStart and valueEnd down to a field, a repeat of it
+     * ({@code repeat >= 0}) and a component of that repeat
+     * ({@code component >= 0}).
+     */
+    private boolean select(int field, int repeat, int component) {
+        if (field < 0 || field >= fieldCount) {
+            return false;
+        }
+        valueStart = fieldStarts[field];
+        valueEnd = fieldEnd(field);
+        return (repeat < 0 || narrow(repeat, repeatDelimiter))
+                && (component < 0 || narrow(component, componentDelimiter));
+    }
+
+    private boolean narrow(int index, char delimiter) {
+        int start = valueStart;
+        for (int i = valueStart; i <= valueEnd; i++) {
+            if (i == valueEnd || text.charAt(i) == delimiter) {
+                if (index-- == 0) {
+                    valueStart = start;
+                    valueEnd = i;
+                    return true;
+                }
+                start = i + 1;
+            }
+        }
+        return false;
+    }
+
+    private int count(int start, int end, char delimiter) {
+        int count = 1;
+        for (int i = start; i < end; i++) {
+            if (text.charAt(i) == delimiter) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private String value() {
+        return text.subSequence(valueStart, valueEnd).toString();
+    }
+}
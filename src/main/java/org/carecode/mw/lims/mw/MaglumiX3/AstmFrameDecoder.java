@@ -0,0 +1,218 @@
+package org.carecode.mw.lims.mw.MaglumiX3;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Splits the raw ASTM E1381 byte stream into control characters and frames.
+ *
+ * The decoder scans whole buffers for the frame terminator instead of reading
+ * byte by byte. A frame that arrives completely inside one buffer is handed
+ * to the listener as a slice of that buffer without copying; only frames that
+ * are split across reads are gathered in a pooled frame buffer. Frames longer
+ * than {@link #MAX_FRAME_SIZE} are dropped so that a lost ETX cannot make the
+ * buffer grow without limit.
+ *
+ * The checksum is summed while the frame is scanned and compared with the two
+ * hex digits that follow ETX or ETB, so a frame only reaches
+ * {@link Listener#onFrame(ByteBuffer, boolean)} once it is known to be intact.
+ */
+public class AstmFrameDecoder {
+
+    private static final Logger logger = LogManager.getLogger(AstmFrameDecoder.class);
+
+    static final int MAX_FRAME_SIZE = 64 * 1024;
+
+    private static final byte STX = 0x02;
+    private static final byte ETX = 0x03;
+    private static final byte ETB = 0x17;
+    private static final int CHECKSUM_LENGTH = 2;
+    private static final int TRAILER_LENGTH = 2; // CR, LF after the checksum
+
+    /**
+     * Receives what the decoder finds in the stream. Frame buffers are only
+     * valid for the duration of the call.
+     */
+    public interface Listener {
+
+        void onControl(int control) throws IOException;
+
+        /**
+         * @param last false when the frame ended with ETB and the record
+         * continues in the next frame
+         */
+        void onFrame(ByteBuffer frame, boolean last) throws IOException;
+
+        void onInvalidFrame(String reason) throws IOException;
+    }
+
+    private enum State {
+        IDLE, FRAME, CHECKSUM, TRAILER
+    }
+
+    private final Listener listener;
+    private ByteBuffer frameBuffer;
+    private State state = State.IDLE;
+    private boolean oversized;
+    private int checksum;
+    private byte terminator;
+    private int receivedChecksum;
+    private int checksumDigits;
+    private int trailerRemaining;
+
+    public AstmFrameDecoder(Listener listener) {
+        this.listener = listener;
+        this.frameBuffer = ByteBufferPool.FRAME_BUFFERS.acquire();
+    }
+
+    public void decode(ByteBuffer in) throws IOException {
+        while (in.hasRemaining()) {
+            switch (state) {
+                case FRAME:
+                    decodeFrame(in);
+                    break;
+                case CHECKSUM:
+                    addChecksumDigit(in.get());
+                    if (checksumDigits == CHECKSUM_LENGTH) {
+                        frameBuffer.flip();
+                        complete(frameBuffer);
+                        frameBuffer.clear();
+                    }
+                    break;
+                case TRAILER:
+                    int skip = Math.min(trailerRemaining, in.remaining());
+                    in.position(in.position() + skip);
+                    trailerRemaining -= skip;
+                    if (trailerRemaining == 0) {
+                        state = State.IDLE;
+                    }
+                    break;
+                default:
+                    byte data = in.get();
+                    if (data == STX) {
+                        state = State.FRAME;
+                        frameBuffer.clear();
+                        oversized = false;
+                        checksum = 0;
+                    } else {
+                        listener.onControl(data & 0xFF);
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Forgets a partially received frame and waits for the next STX.
+     */
+    public void reset() {
+        state = State.IDLE;
+        oversized = false;
+        if (frameBuffer != null) {
+            frameBuffer.clear();
+        }
+    }
+
+    /**
+     * Returns the frame buffer to the shared pool. The decoder must not be used
+     * afterwards.
+     */
+    public void release() {
+        ByteBufferPool.FRAME_BUFFERS.release(frameBuffer);
+        frameBuffer = null;
+    }
+
+    private void decodeFrame(ByteBuffer in) throws IOException {
+        int start = in.position();
+        int end = scanFrame(in, start, in.limit());
+        if (end < 0) {
+            gather(in, start, in.limit());
+            in.position(in.limit());
+            return;
+        }
+        terminator = in.get(end);
+        checksum += terminator;
+        in.position(end + 1);
+        receivedChecksum = 0;
+        checksumDigits = 0;
+
+        if (frameBuffer.position() == 0 && !oversized && in.remaining() >= CHECKSUM_LENGTH) {
+            ByteBuffer frame = in.duplicate();
+            frame.limit(end).position(start);
+            addChecksumDigit(in.get());
+            addChecksumDigit(in.get());
+            complete(frame.slice());
+            return;
+        }
+        gather(in, start, end);
+        state = State.CHECKSUM;
+    }
+
+    private void addChecksumDigit(byte data) {
+        int digit = Character.digit(data, 16);
+        receivedChecksum = digit < 0 || receivedChecksum < 0 ? -1 : receivedChecksum * 16 + digit;
+        checksumDigits++;
+    }
+
+    private void complete(ByteBuffer frame) throws IOException {
+        state = State.TRAILER;
+        trailerRemaining = TRAILER_LENGTH;
+        if (oversized) {
+            logger.warn("Discarded frame longer than " + MAX_FRAME_SIZE + " bytes");
+            listener.onInvalidFrame("frame longer than " + MAX_FRAME_SIZE + " bytes");
+        } else if (receivedChecksum != (checksum & 0xFF)) {
+            logger.warn("Checksum mismatch, expected " + Integer.toHexString(checksum & 0xFF) + " but received " + Integer.toHexString(receivedChecksum));
+            listener.onInvalidFrame("checksum mismatch");
+        } else {
+            listener.onFrame(frame, terminator == ETX);
+        }
+    }
+
+    private void gather(ByteBuffer in, int from, int to) {
+        if (oversized) {
+            return;
+        }
+        int length = to - from;
+        if (length > frameBuffer.remaining()) {
+            oversized = true;
+            return;
+        }
+        ByteBuffer part = in.duplicate();
+        part.limit(to).position(from);
+        frameBuffer.put(part);
+    }
+
+    /**
+     * Returns the index of the ETX or ETB that ends the current frame, or -1 if
+     * the range holds neither, adding every byte before it to the running
+     * checksum.
+     */
+    private int scanFrame(ByteBuffer buffer, int from, int to) {
+        int sum = checksum;
+        int found = -1;
+        if (buffer.hasArray()) {
+            byte[] array = buffer.array();
+            int offset = buffer.arrayOffset();
+            for (int i = from + offset, end = to + offset; i < end; i++) {
+                if (array[i] == ETX || array[i] == ETB) {
+                    found = i - offset;
+                    break;
+                }
+                sum += array[i] & 0xFF;
+            }
+        } else {
+            for (int i = from; i < to; i++) {
+                byte data = buffer.get(i);
+                if (data == ETX || data == ETB) {
+                    found = i;
+                    break;
+                }
+                sum += data & 0xFF;
+            }
+        }
+        checksum = sum;
+        return found;
+    }
+}
@@ -0,0 +1,81 @@
+package org.carecode.mw.lims.mw.MaglumiX3;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Encodes outbound ASTM frames for one session.
+ *
+ * STX, the record, CR, ETX, the checksum and CR LF are written straight into
+ * a byte array that is reused for every frame, and the checksum is summed in
+ * the same pass. The encoded frame stays in the buffer until the next one is
+ * written, so a NAKed frame can be sent again without encoding it twice.
+ *
+ * Records are encoded as ISO-8859-1, the charset received frames are decoded
+ * with: every character is one byte, and the checksum covers exactly the
+ * bytes sent. A character outside ISO-8859-1 goes out as '?'. This differs
+ * from the old {@code getBytes()} path, which used the platform charset and
+ * summed the characters, so a non-ASCII name or unit on a UTF-8 platform went
+ * out in more bytes than its checksum counted.
+ */
+public class AstmFrameWriter {
+
+    private static final byte STX = 0x02;
+    private static final byte ETX = 0x03;
+    private static final byte CR = 0x0D;
+    private static final byte LF = 0x0A;
+    private static final byte[] HEX_DIGITS = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'};
+
+    // STX + CR + ETX + two checksum digits + CR LF
+    private static final int FRAME_OVERHEAD = 7;
+
+    private final OutputStream out;
+    private byte[] buffer = new byte[256];
+    private int length;
+
+    public AstmFrameWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    public void writeFrame(CharSequence record) throws IOException {
+        int size = record.length() + FRAME_OVERHEAD;
+        if (size > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(size, buffer.length * 2));
+        }
+        int position = 0;
+        int sum = 0;
+        buffer[position++] = STX;
+        for (int i = 0; i < record.length(); i++) {
+            char c = record.charAt(i);
+            byte data = c < 0x100 ? (byte) c : (byte) '?';
+            buffer[position++] = data;
+            sum += data & 0xFF;
+        }
+        buffer[position++] = CR;
+        buffer[position++] = ETX;
+        sum = (sum + CR + ETX) & 0xFF;
+        buffer[position++] = HEX_DIGITS[sum >> 4];
+        buffer[position++] = HEX_DIGITS[sum & 0x0F];
+        buffer[position++] = CR;
+        buffer[position++] = LF;
+        length = position;
+        resend();
+    }
+
+    /**
+     * Writes the last frame again, as it went out the first time.
+     */
+    public void resend() throws IOException {
+        out.write(buffer, 0, length);
+        out.flush();
+    }
+
+    public boolean hasFrame() {
+        return length > 0;
+    }
+
+    public void clear() {
+        length = 0;
+    }
+}
@@ -0,0 +1,128 @@
+package org.carecode.mw.lims.mw.MaglumiX3;
+
+import java.util.Arrays;
+
+/**
+ * Where each record of an ASTM message starts and ends, and what type it is.
+ *
+ * {@link #scan(CharSequence, char)} walks the message once; a line is a
+ * record when, after leading white space and a frame number, a letter is
+ * followed by the field delimiter. Asking whether the message holds result
+ * or query records, and finding the O record that names the sample, then
+ * reads the index instead of matching the message again. Pair it with an
+ * {@link AstmFieldCursor} to read the fields of a record. The index is
+ * reusable and not thread safe.
+ */
+public class AstmMessageIndex {
+
+    private CharSequence text = "";
+    private char[] types = new char[16];
+    private int[] starts = new int[16];
+    private int[] ends = new int[16];
+    private int size;
+    // bit (type - 'A') is set for every record type in the message
+    private int seenTypes;
+
+    public AstmMessageIndex scan(CharSequence message) {
+        return scan(message, AstmFieldCursor.DEFAULT_FIELD_DELIMITER);
+    }
+
+    public AstmMessageIndex scan(CharSequence message, char fieldDelimiter) {
+        text = message;
+        size = 0;
+        seenTypes = 0;
+        int length = message.length();
+        int lineStart = 0;
+        while (lineStart < length) {
+            int lineEnd = lineStart;
+            while (lineEnd < length && message.charAt(lineEnd) != '\r' && message.charAt(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            int start = lineStart;
+            while (start < lineEnd && Character.isWhitespace(message.charAt(start))) {
+                start++;
+            }
+            int type = start;
+            while (type < lineEnd && Character.isDigit(message.charAt(type))) {
+                type++;
+            }
+            if (type + 1 < lineEnd && message.charAt(type + 1) == fieldDelimiter) {
+                char recordType = message.charAt(type);
+                if (recordType >= 'A' && recordType <= 'Z') {
+                    add(recordType, start, lineEnd);
+                }
+            }
+            lineStart = lineEnd + 1;
+        }
+        return this;
+    }
+
+    private void add(char type, int start, int end) {
+        if (size == types.length) {
+            int capacity = size * 2;
+            types = Arrays.copyOf(types, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+        }
+        types[size] = type;
+        starts[size] = start;
+        ends[size] = end;
+        size++;
+        seenTypes |= 1 << (type - 'A');
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public char type(int record) {
+        return types[record];
+    }
+
+    /**
+     * Offset of the record in the message, frame number included.
+     */
+    public int start(int record) {
+        return starts[record];
+    }
+
+    /**
+     * Offset just past the record, before its carriage return.
+     */
+    public int end(int record) {
+        return ends[record];
+    }
+
+    public boolean contains(char type) {
+        return type >= 'A' && type <= 'Z' && (seenTypes & 1 << (type - 'A')) != 0;
+    }
+
+    /**
+     * @return the first record of the type, or -1 when there is none
+     */
+    public int first(char type) {
+        return next(type, 0);
+    }
+
+    /**
+     * @return the first record of the type at or after {@code from}, or -1
+     */
+    public int next(char type, int from) {
+        if (!contains(type)) {
+            return -1;
+        }
+        for (int i = from; i < size; i++) {
+            if (types[i] == type) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Points the cursor at a record of the indexed message.
+     */
+    public AstmFieldCursor select(AstmFieldCursor fields, int record) {
+        return fields.reset(text, starts[record], ends[record]);
+    }
+}
@@ -0,0 +1,126 @@
+package org.carecode.mw.lims.mw.MaglumiX3;
+
+import java.nio.ByteBuffer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Joins ETB intermediate frames into the logical record they were split from.
+ *
+ * A record that fits into one ETX frame is passed through untouched. When the
+ * analyzer splits a long record, every fragment is appended once to a pooled
+ * record buffer; the frame number of each continuation frame is checked
+ * against the previous one and dropped, so the assembled record reads exactly
+ * like a single frame.
+ */
+public class AstmRecordAssembler {
+
+    private static final Logger logger = LogManager.getLogger(AstmRecordAssembler.class);
+
+    /**
+     * What happened to the frame passed to {@link #add(ByteBuffer, boolean)}.
+     */
+    public enum Outcome {
+        /** A complete record is available from {@link #record()}. */
+        RECORD,
+        /** The fragment was stored, more frames follow. */
+        PENDING,
+        /** A retransmission of the fragment stored last, already ignored. */
+        DUPLICATE,
+        /** The frame number does not follow the previous fragment. */
+        OUT_OF_SEQUENCE,
+        /** The assembled record would exceed the record buffer. */
+        OVERSIZED
+    }
+
+    private ByteBuffer recordBuffer;
+    private ByteBuffer record;
+    private boolean assembling;
+    private int lastFrameNumber = -1;
+
+    public Outcome add(ByteBuffer frame, boolean last) {
+        record = null;
+        if (!assembling) {
+            if (last) {
+                record = frame;
+                return Outcome.RECORD;
+            }
+            if (recordBuffer == null) {
+                recordBuffer = ByteBufferPool.FRAME_BUFFERS.acquire();
+            }
+            recordBuffer.clear();
+            assembling = true;
+            lastFrameNumber = frameNumber(frame);
+            return append(frame, last);
+        }
+
+        int frameNumber = frameNumber(frame);
+        if (lastFrameNumber >= 0) {
+            if (frameNumber == lastFrameNumber) {
+                logger.debug("Ignoring retransmitted frame " + frameNumber);
+                return Outcome.DUPLICATE;
+            }
+            if (frameNumber != (lastFrameNumber + 1) % 8) {
+                logger.warn("Frame " + frameNumber + " does not follow frame " + lastFrameNumber);
+                return Outcome.OUT_OF_SEQUENCE;
+            }
+            lastFrameNumber = frameNumber;
+            frame.position(frame.position() + 1);
+        }
+        return append(frame, last);
+    }
+
+    /**
+     * The last complete record. Only valid until the next call to
+     * {@link #add(ByteBuffer, boolean)}.
+     */
+    public ByteBuffer record() {
+        return record;
+    }
+
+    /**
+     * Drops a partially assembled record, for example when the transfer ends.
+     */
+    public void reset() {
+        if (assembling) {
+            logger.warn("Discarding incomplete record of " + recordBuffer.position() + " bytes");
+        }
+        assembling = false;
+        lastFrameNumber = -1;
+        record = null;
+    }
+
+    public void release() {
+        reset();
+        ByteBufferPool.FRAME_BUFFERS.release(recordBuffer);
+        recordBuffer = null;
+    }
+
+    private Outcome append(ByteBuffer frame, boolean last) {
+        if (frame.remaining() > recordBuffer.remaining()) {
+            reset();
+            return Outcome.OVERSIZED;
+        }
+        recordBuffer.put(frame);
+        if (!last) {
+            return Outcome.PENDING;
+        }
+        assembling = false;
+        lastFrameNumber = -1;
+        recordBuffer.flip();
+        record = recordBuffer;
+        return Outcome.RECORD;
+    }
+
+    /**
+     * Returns the leading frame number digit, or -1 when the analyzer does not
+     * number its frames.
+     */
+    private static int frameNumber(ByteBuffer frame) {
+        if (!frame.hasRemaining()) {
+            return -1;
+        }
+        int data = frame.get(frame.position());
+        return data >= '0' && data <= '7' ? data - '0' : -1;
+    }
+}
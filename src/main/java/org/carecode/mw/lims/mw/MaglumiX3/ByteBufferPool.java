@@ -0,0 +1,47 @@
+package org.carecode.mw.lims.mw.MaglumiX3;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Small free list of equally sized heap buffers shared by all sessions, so
+ * that opening and closing connections does not keep allocating fresh read
+ * and frame buffers.
+ */
+final class ByteBufferPool {
+
+    static final ByteBufferPool READ_BUFFERS = new ByteBufferPool(4096, 256);
+    static final ByteBufferPool FRAME_BUFFERS = new ByteBufferPool(AstmFrameDecoder.MAX_FRAME_SIZE, 64);
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    ByteBufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocate(bufferSize);
+        }
+        pooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != bufferSize) {
+            return;
+        }
+        if (pooled.incrementAndGet() > maxPooled) {
+            pooled.decrementAndGet();
+            return;
+        }
+        free.offer(buffer);
+    }
+}
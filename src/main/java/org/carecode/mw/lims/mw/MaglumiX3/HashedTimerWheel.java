@@ -0,0 +1,149 @@
+package org.carecode.mw.lims.mw.MaglumiX3;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Hashed timer wheel for the many short protocol timers of the sessions.
+ *
+ * Scheduling and cancelling are O(1) and a single thread serves every
+ * session, so restarting a timer for each received frame costs next to
+ * nothing. Timers fire with tick granularity, which is plenty for the second
+ * scale timeouts of ASTM. Tasks run on the wheel thread and must not block.
+ */
+public class HashedTimerWheel {
+
+    private static final Logger logger = LogManager.getLogger(HashedTimerWheel.class);
+
+    private static final HashedTimerWheel SHARED = new HashedTimerWheel(100, 512);
+
+    private final long tickMillis;
+    private final int mask;
+    private final LinkedList<Timeout>[] wheel;
+    private final Queue<Timeout> newTimeouts = new ConcurrentLinkedQueue<>();
+    private final long startTime;
+    private final Thread worker;
+    private long tick;
+
+    /**
+     * Returns the wheel shared by all analyzer sessions.
+     */
+    public static HashedTimerWheel shared() {
+        return SHARED;
+    }
+
+    @SuppressWarnings("unchecked")
+    public HashedTimerWheel(long tickMillis, int ticksPerWheel) {
+        int size = Integer.highestOneBit(ticksPerWheel - 1) << 1;
+        this.tickMillis = tickMillis;
+        this.mask = size - 1;
+        this.wheel = new LinkedList[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new LinkedList<>();
+        }
+        this.startTime = System.nanoTime();
+        this.worker = new Thread(this::run, "session-timer-wheel");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    public Timeout schedule(Runnable task, long delayMillis) {
+        long deadline = System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        Timeout timeout = new Timeout(task, deadline);
+        newTimeouts.add(timeout);
+        return timeout;
+    }
+
+    private void run() {
+        long tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        while (!Thread.currentThread().isInterrupted()) {
+            long sleepNanos = tickNanos * (tick + 1) - (System.nanoTime() - startTime);
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            transferNewTimeouts(tickNanos);
+            expire(wheel[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    private void transferNewTimeouts(long tickNanos) {
+        Timeout timeout;
+        while ((timeout = newTimeouts.poll()) != null) {
+            if (timeout.isCancelled()) {
+                continue;
+            }
+            long ticks = Math.max(timeout.deadline / tickNanos, tick);
+            timeout.remainingRounds = (ticks - tick) / wheel.length;
+            wheel[(int) (ticks & mask)].add(timeout);
+        }
+    }
+
+    private void expire(LinkedList<Timeout> bucket) {
+        Iterator<Timeout> iterator = bucket.iterator();
+        while (iterator.hasNext()) {
+            Timeout timeout = iterator.next();
+            if (timeout.isCancelled()) {
+                iterator.remove();
+            } else if (timeout.remainingRounds > 0) {
+                timeout.remainingRounds--;
+            } else {
+                iterator.remove();
+                timeout.expire();
+            }
+        }
+    }
+
+    /**
+     * Handle of a scheduled task.
+     */
+    public static class Timeout {
+
+        private static final int PENDING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        private long remainingRounds;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels the task if it has not run yet.
+         */
+        public boolean cancel() {
+            return state.compareAndSet(PENDING, CANCELLED);
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        private void expire() {
+            if (!state.compareAndSet(PENDING, EXPIRED)) {
+                return;
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.error("Timer task failed", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package org.carecode.mw.lims.mw.MaglumiX3;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Keeps the HL7 messages that have been acknowledged to the analyzer but not
+ * processed yet.
+ *
+ * A commit ACK tells the analyzer it may forget the message, so the message
+ * is written to a file of its own and forced to disk before the ACK goes out.
+ * The file is removed once the results of the message are in the result
+ * journal. Files still there at start-up belong to messages a crash
+ * interrupted and are processed again, oldest first.
+ */
+public class Hl7Inbox {
+
+    private static final Logger logger = LogManager.getLogger(Hl7Inbox.class);
+
+    private static final String SUFFIX = ".hl7";
+
+    private final Path directory;
+    // file names sort in arrival order, across restarts as long as the clock does not go back
+    private final AtomicLong sequence = new AtomicLong(System.currentTimeMillis() * 1000);
+
+    public Hl7Inbox(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * Writes the message to disk and waits until it is there.
+     *
+     * @return the file that holds the message
+     */
+    public Path store(byte[] message, int length) throws IOException {
+        Path file = directory.resolve(String.format("%020d%s", sequence.incrementAndGet(), SUFFIX));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            ByteBuffer data = ByteBuffer.wrap(message, 0, length);
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+            channel.force(true);
+        }
+        return file;
+    }
+
+    /**
+     * The messages left over from before the last shutdown, oldest first.
+     */
+    public List<Path> pending() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    public String read(Path file) throws IOException {
+        return new String(Files.readAllBytes(file), StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Removes a message that has been processed.
+     */
+    public void remove(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            logger.error("Could not remove " + file + ", it will be processed again at the next start", e);
+        }
+    }
+}
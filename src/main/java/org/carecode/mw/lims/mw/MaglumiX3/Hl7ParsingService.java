@@ -0,0 +1,85 @@
+package org.carecode.mw.lims.mw.MaglumiX3;
+
+import ca.uhn.hl7v2.DefaultHapiContext;
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.HapiContext;
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.parser.CanonicalModelClassFactory;
+import ca.uhn.hl7v2.parser.PipeParser;
+import ca.uhn.hl7v2.validation.impl.ValidationContextFactory;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The one HAPI context and pipe parser used for every HL7 message.
+ *
+ * Building a HAPI context and looking up the model classes of a message type
+ * costs far more than parsing a typical analyzer message, so both are done
+ * once. Messages are parsed into the v2.5 structures whatever version the
+ * analyzer declares, so an {@code OUL^R22} is always an
+ * {@link ca.uhn.hl7v2.model.v25.message.OUL_R22}, and without validation,
+ * which the analyzer's messages do not always pass and which we do not rely
+ * on. The parser is thread safe and shared by all connections; the first
+ * {@link #getInstance()} parses an {@code OUL^R22} and a {@code QRY^Q01} so
+ * their classes are loaded before the first real message arrives.
+ */
+public class Hl7ParsingService {
+
+    private static final Logger logger = LogManager.getLogger(Hl7ParsingService.class);
+
+    private static final String HL7_VERSION = "2.5";
+
+    private static final String[] WARM_UP_MESSAGES = {
+        "MSH|^~\\&|MaglumiX3|Lab|LIS|Lab|20240101000000||OUL^R22^OUL_R22|1|P|2.5\r"
+        + "SPM|1|0000^||SER\r"
+        + "OBR|1||0000|TSH\r"
+        + "OBX|1|NM|TSH||1.0|uIU/mL|||||F|||20240101000000\r",
+        "MSH|^~\\&|MaglumiX3|Lab|LIS|Lab|20240101000000||QRY^Q01|2|P|2.5\r"
+        + "QRD|20240101000000|R|I|2||||0000|OTH\r"
+        + "QRF|MaglumiX3||||\r"
+    };
+
+    private static Hl7ParsingService instance;
+
+    private final HapiContext context;
+    private final PipeParser parser;
+
+    public static synchronized Hl7ParsingService getInstance() {
+        if (instance == null) {
+            instance = new Hl7ParsingService();
+            instance.warmUp();
+        }
+        return instance;
+    }
+
+    private Hl7ParsingService() {
+        context = new DefaultHapiContext(new CanonicalModelClassFactory(HL7_VERSION));
+        context.setValidationContext(ValidationContextFactory.noValidation());
+        context.getParserConfiguration().setValidating(false);
+        parser = context.getPipeParser();
+    }
+
+    private void warmUp() {
+        long start = System.nanoTime();
+        for (String message : WARM_UP_MESSAGES) {
+            try {
+                parser.parse(message);
+            } catch (HL7Exception e) {
+                logger.warn("HL7 parser warm-up failed", e);
+            }
+        }
+        logger.info("HL7 parser ready in " + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+
+    public Message parse(String message) throws HL7Exception {
+        return parser.parse(message);
+    }
+
+    public String encode(Message message) throws HL7Exception {
+        return parser.encode(message);
+    }
+
+    public PipeParser getParser() {
+        return parser;
+    }
+}
@@ -0,0 +1,108 @@
+package org.carecode.mw.lims.mw.MaglumiX3;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.carecode.lims.libraries.ResultsRecord;
+
+/**
+ * Reads the results of an {@code OUL^R22} straight from its pipe-delimited
+ * text.
+ *
+ * The LIS only needs the specimen ID of each SPM segment and the identifier,
+ * value, units and time of the OBX segments of its orders, those after an OBR
+ * of the specimen; an OBX between SPM and the first OBR describes the
+ * specimen and is not a result, as in the specimen group of HAPI. Building the
+ * HAPI object graph of a message with many specimens costs far more than
+ * that, so the segments are walked with an {@link AstmFieldCursor} set to the
+ * delimiters declared in MSH, and every other segment is skipped without
+ * being split. Messages of another type, and messages with escape sequences,
+ * which HAPI decodes and this scanner does not, are left to the full parse.
+ */
+public class Hl7ResultExtractor {
+
+    private final AstmFieldCursor fields = new AstmFieldCursor();
+    private char subcomponentDelimiter;
+
+    /**
+     * @return MSH-9 as message code and trigger event, such as
+     * {@code OUL^R22}, or null when the message has no MSH segment
+     */
+    public static String messageType(String message) {
+        int msh = message.indexOf("MSH");
+        if (msh < 0 || msh + 8 > message.length()) {
+            return null;
+        }
+        AstmFieldCursor fields = new AstmFieldCursor();
+        fields.useDelimiters(message.charAt(msh + 3), message.charAt(msh + 5), message.charAt(msh + 4), message.charAt(msh + 6));
+        fields.reset(message, msh, message.length());
+        return fields.component(8, 0) + "^" + fields.component(8, 1);
+    }
+
+    /**
+     * @return the results with the sample ID of their specimen, or null when
+     * the message has to go through the full HAPI parse
+     */
+    public List<ResultsRecord> extract(String message, String instrumentName) {
+        int msh = message.indexOf("MSH");
+        if (msh < 0 || msh + 8 > message.length()) {
+            return null;
+        }
+        char fieldDelimiter = message.charAt(msh + 3);
+        char componentDelimiter = message.charAt(msh + 4);
+        char repeatDelimiter = message.charAt(msh + 5);
+        char escapeCharacter = message.charAt(msh + 6);
+        subcomponentDelimiter = message.charAt(msh + 7);
+        if (message.indexOf(escapeCharacter, msh + 8) >= 0) {
+            return null;
+        }
+        fields.useDelimiters(fieldDelimiter, repeatDelimiter, componentDelimiter, escapeCharacter);
+
+        // MSH-1 is the field delimiter itself, so MSH-9 is the eighth field after the name
+        fields.reset(message, msh, message.length());
+        if (!fields.component(8, 0).equals("OUL") || !fields.component(8, 1).equals("R22")) {
+            return null;
+        }
+
+        List<ResultsRecord> results = new ArrayList<>();
+        String sampleId = "";
+        boolean inOrder = false;
+        int segmentStart = msh;
+        while (segmentStart < message.length()) {
+            int segmentEnd = segmentStart;
+            while (segmentEnd < message.length() && message.charAt(segmentEnd) != '\r' && message.charAt(segmentEnd) != '\n') {
+                segmentEnd++;
+            }
+            if (isSegment(message, segmentStart, segmentEnd, "SPM", fieldDelimiter)) {
+                // SPM-2.1.1, the entity identifier of the placer assigned identifier
+                fields.reset(message, segmentStart, segmentEnd);
+                sampleId = firstSubcomponent(fields.component(2, 0));
+                inOrder = false;
+            } else if (isSegment(message, segmentStart, segmentEnd, "OBR", fieldDelimiter)) {
+                inOrder = true;
+            } else if (inOrder && isSegment(message, segmentStart, segmentEnd, "OBX", fieldDelimiter)) {
+                fields.reset(message, segmentStart, segmentEnd);
+                results.add(new ResultsRecord(
+                        1,
+                        fields.component(3, 0),
+                        fields.repeat(5, 0),
+                        fields.component(6, 0),
+                        fields.component(14, 0),
+                        instrumentName,
+                        sampleId));
+            }
+            segmentStart = segmentEnd + 1;
+        }
+        return results;
+    }
+
+    private static boolean isSegment(String message, int start, int end, String name, char fieldDelimiter) {
+        return end - start > name.length()
+                && message.startsWith(name, start)
+                && message.charAt(start + name.length()) == fieldDelimiter;
+    }
+
+    private String firstSubcomponent(String component) {
+        int end = component.indexOf(subcomponentDelimiter);
+        return end < 0 ? component : component.substring(0, end);
+    }
+}
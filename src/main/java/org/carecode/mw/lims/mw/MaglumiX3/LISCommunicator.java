@@ -1,27 +1,77 @@
 package org.carecode.mw.lims.mw.MaglumiX3;
 
 import com.google.gson.Gson;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.ConnectException;
+import java.net.CookieManager;
 import java.net.HttpURLConnection;
-import java.net.URL;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import org.carecode.lims.libraries.AnalyzerDetails;
 import org.carecode.lims.libraries.DataBundle;
+import org.carecode.lims.libraries.LimsSettings;
+import org.carecode.lims.libraries.MiddlewareSettings;
 import org.carecode.lims.libraries.QueryRecord;
 import org.carecode.lims.libraries.ResultsRecord;
 import static org.carecode.mw.lims.mw.MaglumiX3.MaglumiX3.logger;
+import javax.net.ssl.SSLContext;
 
 public class LISCommunicator {
 
 //    static boolean testing = true;
-    private static final Gson gson = new Gson();
+    private static final Gson gson = LimsJsonCodecs.create();
+
+    private static final int TLS_SESSION_CACHE_SIZE = 64;
+    private static final int TLS_SESSION_TIMEOUT_SECONDS = 24 * 60 * 60;
+
+    // request bodies above this size are not kept for the next request
+    private static final int MAX_RETAINED_BUFFER = 1024 * 1024;
+    private static final ThreadLocal<RequestBuffer> REQUEST_BUFFERS = ThreadLocal.withInitial(RequestBuffer::new);
+
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+    private static final int MAX_ERROR_BODY = 512;
+
+    // retries that may be spent at once, before first attempts have paid for them
+    private static final double RETRY_BUDGET_RESERVE = 10;
+    private static final LatencyTracker orderPullLatencies = new LatencyTracker(200);
+
+    private static HttpClient httpClient;
+    private static volatile boolean compactRequests;
+    private static volatile String[] identityHeaders = new String[0];
+    private static volatile boolean hedgeOrderPulls;
+    private static volatile LisCircuitBreaker circuitBreaker;
+    private static volatile RetryBudget retryBudget;
+    private static volatile int maxRetries;
+    private static volatile long retryBaseMillis;
 
     public static DataBundle pullTestOrdersForSampleRequests(QueryRecord queryRecord) {
         System.out.println("pullTestOrdersForSampleRequests");
@@ -36,137 +86,460 @@ public class LISCommunicator {
 //        }
 
         try {
-            String postSampleDataEndpoint = SettingsLoader.getSettings().getLimsSettings().getLimsServerBaseUrl();
-            System.out.println("postSampleDataEndpoint = " + postSampleDataEndpoint);
-            URL url = new URL(postSampleDataEndpoint + "/test_orders_for_sample_requests");
-            System.out.println("url = " + url);
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestMethod("POST");
-            conn.setRequestProperty("Content-Type", "application/json");
-            conn.setRequestProperty("Accept", "application/json");
-            conn.setDoOutput(true);
             System.out.println("queryRecord = " + queryRecord);
             // Convert QueryRecord to JSON
 
             DataBundle databundle = new DataBundle();
-            databundle.setMiddlewareSettings(SettingsLoader.getSettings());
             databundle.getQueryRecords().add(queryRecord);
-            String jsonInputString = gson.toJson(databundle);
-            System.out.println("jsonInputString = " + jsonInputString);
             // Send the request
-            try (OutputStream os = conn.getOutputStream()) {
-                byte[] input = jsonInputString.getBytes("utf-8");
-                os.write(input, 0, input.length);
-            }
+            HttpResponse<InputStream> response = post("/test_orders_for_sample_requests", databundle, orderPullLatencies, true);
 
-            int responseCode = conn.getResponseCode();
+            int responseCode = response.statusCode();
             System.out.println("responseCode = " + responseCode);
             if (responseCode == HttpURLConnection.HTTP_OK) {
-                System.out.println("OK responseCode = " + responseCode);
-                // Process response
-                BufferedReader in = new BufferedReader(new InputStreamReader(conn.getInputStream(), "utf-8"));
-                StringBuilder response = new StringBuilder();
-                String inputLine;
-
-                while ((inputLine = in.readLine()) != null) {
-                    response.append(inputLine);
+                // Convert the response to a PatientDataBundle object as it streams in
+                try (Reader reader = new InputStreamReader(response.body(), StandardCharsets.UTF_8)) {
+                    DataBundle patientDataBundle = gson.fromJson(reader, DataBundle.class);
+                    System.out.println("patientDataBundle = " + patientDataBundle);
+                    return patientDataBundle;
                 }
-                in.close();
-                System.out.println("response.toString() = " + response.toString());
-                // Convert the response to a PatientDataBundle object
-                DataBundle patientDataBundle = gson.fromJson(response.toString(), DataBundle.class);
-                System.out.println("patientDataBundle = " + patientDataBundle);
-                return patientDataBundle;
             } else {
                 System.out.println("POST request failed. Response code: " + responseCode);
+                discard(response.body());
             }
-        } catch (Exception e) {
+        } catch (JsonParseException e) {
+            logger.error("Could not read the orders returned by the LIS", e);
+        } catch (LisUnavailableException e) {
+            logger.warn("LIS unavailable, no orders for sample " + queryRecord.getSampleId());
+        } catch (IOException e) {
             e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
 
         return null;
     }
 
-    public static void pushResults(DataBundle patientDataBundle) {
+    /**
+     * Posts the results of one or more samples in a single request.
+     *
+     * @return whether the LIS took the results, with the records it did not
+     * accept as reported per item in the response, or why the request failed
+     * and whether sending it again may help
+     */
+    public static PushResult pushResults(DataBundle patientDataBundle) {
         System.out.println("pushResults = ");
         try {
-            System.out.println("SettingsLoader.getSettings() = " + SettingsLoader.getSettings());
-            System.out.println("SettingsLoader.getSettings().getLimsSettings() = " + SettingsLoader.getSettings().getLimsSettings());
-            System.out.println("SettingsLoader.getSettings().getLimsSettings().getLimsServerBaseUrl() = " + SettingsLoader.getSettings().getLimsSettings().getLimsServerBaseUrl());
-            String pushResultsEndpoint = SettingsLoader.getSettings().getLimsSettings().getLimsServerBaseUrl() + "/test_results";
-
-            URL url = new URL(pushResultsEndpoint);
-            System.out.println("url = " + url);
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestMethod("POST");
-            conn.setRequestProperty("Content-Type", "application/json");
-            conn.setRequestProperty("Accept", "application/json");
-            conn.setDoOutput(true);
-            // Serialize PatientDataBundle to JSON
-            patientDataBundle.setMiddlewareSettings(SettingsLoader.getSettings());
-            String jsonInputString = gson.toJson(patientDataBundle);
-            System.out.println("jsonInputString = " + jsonInputString);
-            // Send the JSON in the request body
-            try (OutputStream os = conn.getOutputStream()) {
-                byte[] input = jsonInputString.getBytes("utf-8");
-                os.write(input, 0, input.length);
-            }
+            // Send the JSON in the request body; the response is always read in
+            // full so the connection goes back to the pool
+            // not idempotent: a request that may have reached the LIS is not
+            // sent again here, the upload queue decides what to resend
+            HttpResponse<InputStream> response = post("/test_results", patientDataBundle, null, false);
 
-            int responseCode = conn.getResponseCode();
+            int responseCode = response.statusCode();
             System.out.println("responseCode = " + responseCode);
-            if (responseCode == HttpURLConnection.HTTP_OK) {
+            if (responseCode / 100 == 2) {
                 System.out.println("ok");
-//                BufferedReader in = new BufferedReader(new InputStreamReader(conn.getInputStream(), "utf-8"));
-//                StringBuilder response = new StringBuilder();
-//                String inputLine;
-//
-//                while ((inputLine = in.readLine()) != null) {
-//                    response.append(inputLine);
-//                }
-//                in.close();
-//
-//                System.out.println("response.toString() = " + response.toString());
-//
-//                // Optionally process the server response (if needed)
-//                JsonObject responseObject = JsonParser.parseString(response.toString()).getAsJsonObject();
-//                MaglumiX3.logger.info("Response from server: " + responseObject.toString());
-//
-//// Extract status
-//                String status = responseObject.get("status").getAsString();
-//                MaglumiX3.logger.info("Status: " + status);
-//                
-//                
-//                
-//                if(responseObject.get("details") == null){
-//                    System.out.println("Response Object Details is null");
-//                }
-//                
-//// Extract the list of ResultsRecord objects
-//                Gson gson = new Gson();
-//                JsonArray detailsArray = responseObject.getAsJsonArray("details");
-//                
-//                if(detailsArray == null){
-//                    System.out.println("Details Array is Null");
-//                }
-//// Deserialize the JSON array into a list of ResultsRecord objects
-//                List<ResultsRecord> resultsRecords = new ArrayList<>();
-//                for (JsonElement element : detailsArray) {
-//                    ResultsRecord record = gson.fromJson(element, ResultsRecord.class);
-//                    resultsRecords.add(record);
-//                }
-//
-//// Log and process the ResultsRecord objects as needed
-//                for (ResultsRecord record : resultsRecords) {
-//                    MaglumiX3.logger.info("Sample ID: " + record.getSampleId()
-//                            + ", Test: " + record.getTestCode()
-//                            + ", Status: " + record.getStatus());
-//                }
+                return PushResult.delivered(rejectedResults(response.body()));
+            }
+            System.out.println("POST request failed. Response code: " + responseCode);
+            String reason = "HTTP " + responseCode + ": " + readErrorBody(response.body());
+            return isTransient(responseCode) ? PushResult.retryable(reason) : PushResult.permanent(reason);
+        } catch (LisUnavailableException e) {
+            logger.warn("LIS unavailable, " + patientDataBundle.getResultsRecords().size() + " results not sent");
+            return PushResult.retryable(e.getMessage());
+        } catch (IOException e) {
+            logger.warn("Failed to send " + patientDataBundle.getResultsRecords().size() + " results to the LIS", e);
+            return PushResult.retryable(e.toString());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return PushResult.retryable("interrupted");
+        }
+    }
 
-            } else {
-                System.out.println("POST request failed. Response code: " + responseCode);
+    /**
+     * Server errors, a request timeout and throttling may pass; any other
+     * answer will be the same however often the request is sent.
+     */
+    private static boolean isTransient(int responseCode) {
+        return responseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR
+                || responseCode == HttpURLConnection.HTTP_CLIENT_TIMEOUT
+                || responseCode == HTTP_TOO_MANY_REQUESTS;
+    }
+
+    /**
+     * The start of an error response, for the log; the rest is discarded.
+     */
+    private static String readErrorBody(InputStream responseBody) throws IOException {
+        try (InputStream in = responseBody) {
+            byte[] start = in.readNBytes(MAX_ERROR_BODY);
+            in.transferTo(OutputStream.nullOutputStream());
+            return new String(start, StandardCharsets.UTF_8).trim();
+        }
+    }
+
+    /**
+     * Picks the records whose status in the "details" of the LIS response
+     * reports a failure, reading the response as it streams in. A response
+     * without details, or one that cannot be read, accepts everything: the LIS
+     * has already answered with HTTP 200.
+     */
+    private static List<ResultsRecord> rejectedResults(InputStream responseBody) {
+        List<ResultsRecord> rejected = new ArrayList<>();
+        TypeAdapter<ResultsRecord> results = gson.getAdapter(ResultsRecord.class);
+        try (JsonReader reader = new JsonReader(new InputStreamReader(responseBody, StandardCharsets.UTF_8))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("details".equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        ResultsRecord record = results.read(reader);
+                        if (record != null && isFailure(record.getStatus())) {
+                            rejected.add(record);
+                        }
+                    }
+                    reader.endArray();
+                } else if ("status".equals(name) && reader.peek() == JsonToken.STRING) {
+                    logger.debug("Status: " + reader.nextString());
+                } else {
+                    reader.skipValue();
+                }
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+        } catch (IOException | IllegalStateException | JsonParseException e) {
+            logger.warn("Could not read the LIS response", e);
+        }
+        return rejected;
+    }
+
+    private static void discard(InputStream responseBody) throws IOException {
+        try (InputStream in = responseBody) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+    }
+
+    private static boolean isFailure(String status) {
+        if (status == null) {
+            return false;
+        }
+        String normalized = status.trim().toLowerCase();
+        return normalized.startsWith("fail") || normalized.startsWith("error") || normalized.startsWith("reject");
+    }
+
+    /**
+     * Serializes the bundle straight into a per-thread byte buffer and posts
+     * a copy of it. In compact mode the bundle carries no middleware settings; the
+     * analyzer identity goes in headers prepared once instead.
+     *
+     * @param latencies where the latency of the call is recorded, or null;
+     * calls that are tracked may be hedged
+     * @param idempotent whether the request may be sent again after it may
+     * already have reached the LIS
+     */
+    private static HttpResponse<InputStream> post(String path, DataBundle bundle, LatencyTracker latencies, boolean idempotent)
+            throws IOException, InterruptedException {
+        HttpClient client = getHttpClient();
+        bundle.setMiddlewareSettings(compactRequests ? null : SettingsLoader.getSettings());
+        RequestBuffer body = REQUEST_BUFFERS.get();
+        body.reset();
+        try (Writer writer = new OutputStreamWriter(body, StandardCharsets.UTF_8)) {
+            gson.toJson(bundle, writer);
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("request body = " + body.toString(StandardCharsets.UTF_8.name()));
+        }
+        String baseUrl = SettingsLoader.getSettings().getLimsSettings().getLimsServerBaseUrl();
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(baseUrl + path))
+                .timeout(Duration.ofMillis(SettingsLoader.getPerformanceSetting("lisRequestTimeoutMillis", 30000)))
+                .header("Content-Type", "application/json")
+                .header("Accept", "application/json")
+                // the client reads the body on its own threads, possibly after
+                // send has returned and this thread has reused its buffer
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body.toByteArray()));
+        if (identityHeaders.length > 0) {
+            request.headers(identityHeaders);
+        }
+        try {
+            return send(client, request.build(), latencies, idempotent);
+        } finally {
+            body.trim();
+        }
+    }
+
+    /**
+     * Sends the request through the circuit breaker. Connection failures and
+     * 5xx answers are retried with exponential backoff while the retry budget
+     * allows; an open circuit fails at once with
+     * {@link LisUnavailableException}. A request that is not idempotent is
+     * only retried when it never left, because the connection could not be
+     * made.
+     */
+    private static HttpResponse<InputStream> send(HttpClient client, HttpRequest request, LatencyTracker latencies, boolean idempotent)
+            throws IOException, InterruptedException {
+        retryBudget.recordAttempt();
+        long backoffMillis = retryBaseMillis;
+        for (int attempt = 0;; attempt++) {
+            if (!circuitBreaker.allowRequest()) {
+                throw new LisUnavailableException();
+            }
+            long start = System.nanoTime();
+            HttpResponse<InputStream> response = null;
+            IOException failure = null;
+            boolean outcomeRecorded = false;
+            try {
+                try {
+                    response = hedgeOrderPulls && latencies != null
+                            ? sendHedged(client, request, latencies)
+                            : client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+                } catch (IOException e) {
+                    failure = e;
+                }
+                if (failure == null && response.statusCode() < HttpURLConnection.HTTP_INTERNAL_ERROR) {
+                    circuitBreaker.recordSuccess();
+                    outcomeRecorded = true;
+                    if (latencies != null) {
+                        latencies.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                    }
+                    return response;
+                }
+                circuitBreaker.recordFailure();
+                outcomeRecorded = true;
+            } finally {
+                if (!outcomeRecorded) {
+                    circuitBreaker.recordAbandoned();
+                }
+            }
+            if (attempt >= maxRetries || circuitBreaker.isOpen() || (!idempotent && !neverSent(failure)) || !retryBudget.tryRetry()) {
+                if (failure != null) {
+                    throw failure;
+                }
+                return response;
+            }
+            if (response != null) {
+                discard(response.body());
+            }
+            long delay = ThreadLocalRandom.current().nextLong(backoffMillis / 2, backoffMillis + 1);
+            logger.warn("LIS call failed (" + (failure != null ? failure.toString() : "HTTP " + response.statusCode())
+                    + "), retrying in " + delay + " ms");
+            Thread.sleep(delay);
+            backoffMillis *= 2;
+        }
+    }
+
+    /**
+     * @return true when the request failed before any of it could reach the
+     * LIS
+     */
+    private static boolean neverSent(IOException failure) {
+        return failure instanceof ConnectException || failure instanceof HttpConnectTimeoutException
+                || (failure != null && failure.getCause() instanceof ConnectException);
+    }
+
+    /**
+     * Sends the request and, if no answer has come once the p95 latency of
+     * earlier calls has passed, sends it a second time. The first successful
+     * answer wins and the other one is closed when it arrives.
+     */
+    private static HttpResponse<InputStream> sendHedged(HttpClient client, HttpRequest request, LatencyTracker latencies) throws IOException, InterruptedException {
+        long hedgeDelay = latencies.percentile(0.95);
+        CompletableFuture<HttpResponse<InputStream>> first = client.sendAsync(request, HttpResponse.BodyHandlers.ofInputStream());
+        if (hedgeDelay < 0) {
+            return await(first);
+        }
+        try {
+            return first.get(hedgeDelay, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            logger.debug("No answer from the LIS after " + hedgeDelay + " ms, sending a hedged request");
+        } catch (ExecutionException e) {
+            throw asIOException(e);
+        }
+        CompletableFuture<HttpResponse<InputStream>> second = client.sendAsync(request, HttpResponse.BodyHandlers.ofInputStream());
+        CompletableFuture<HttpResponse<InputStream>> winner = new CompletableFuture<>();
+        AtomicInteger failures = new AtomicInteger();
+        BiConsumer<HttpResponse<InputStream>, Throwable> race = (response, error) -> {
+            if (error == null) {
+                if (!winner.complete(response)) {
+                    closeQuietly(response.body());
+                }
+            } else if (failures.incrementAndGet() == 2) {
+                winner.completeExceptionally(error);
+            }
+        };
+        first.whenComplete(race);
+        second.whenComplete(race);
+        return await(winner);
+    }
+
+    private static HttpResponse<InputStream> await(CompletableFuture<HttpResponse<InputStream>> response) throws IOException, InterruptedException {
+        try {
+            return response.get();
+        } catch (ExecutionException e) {
+            throw asIOException(e);
+        }
+    }
+
+    private static IOException asIOException(ExecutionException e) {
+        Throwable cause = e.getCause() instanceof CompletionException ? e.getCause().getCause() : e.getCause();
+        return cause instanceof IOException ? (IOException) cause : new IOException(cause);
+    }
+
+    private static void closeQuietly(InputStream in) {
+        try {
+            in.close();
+        } catch (IOException e) {
+            logger.debug("Failed to close a hedged response", e);
+        }
+    }
+
+    /**
+     * Headers that identify the analyzer in compact mode, built from the
+     * settings once: basic authentication for the LIS user and the analyzer
+     * and department IDs.
+     */
+    private static String[] buildIdentityHeaders(MiddlewareSettings settings) {
+        List<String> headers = new ArrayList<>();
+        LimsSettings lims = settings.getLimsSettings();
+        if (lims.getUsername() != null) {
+            String credentials = lims.getUsername() + ":" + (lims.getPassword() == null ? "" : lims.getPassword());
+            headers.add("Authorization");
+            headers.add("Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8)));
+        }
+        AnalyzerDetails analyzer = settings.getAnalyzerDetails();
+        addHeader(headers, "X-Analyzer-Id", analyzer.getAnalyzerId());
+        addHeader(headers, "X-Analyzer-Name", analyzer.getAnalyzerName());
+        addHeader(headers, "X-Department-Analyzer-Id", analyzer.getDepartmentAnalyzerId());
+        addHeader(headers, "X-Department-Id", analyzer.getDepartmentId());
+        return headers.toArray(new String[0]);
+    }
+
+    private static void addHeader(List<String> headers, String name, String value) {
+        if (value != null && !value.isEmpty()) {
+            headers.add(name);
+            headers.add(value);
+        }
+    }
+
+    /**
+     * One client for every LIS call, so connections (and their TLS sessions)
+     * are kept alive and reused instead of being set up for each request.
+     */
+    private static synchronized HttpClient getHttpClient() {
+        if (httpClient == null) {
+            SSLContext sslContext;
+            try {
+                sslContext = SSLContext.getInstance("TLS");
+                sslContext.init(null, null, null);
+                sslContext.getClientSessionContext().setSessionCacheSize(TLS_SESSION_CACHE_SIZE);
+                sslContext.getClientSessionContext().setSessionTimeout(TLS_SESSION_TIMEOUT_SECONDS);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("TLS is not available", e);
+            }
+            compactRequests = Boolean.parseBoolean(SettingsLoader.getPerformanceSetting("lisCompactRequests", "false"));
+            hedgeOrderPulls = Boolean.parseBoolean(SettingsLoader.getPerformanceSetting("lisHedgeOrderPulls", "false"));
+            circuitBreaker = new LisCircuitBreaker((int) SettingsLoader.getPerformanceSetting("lisBreakerFailureThreshold", 5),
+                    SettingsLoader.getPerformanceSetting("lisBreakerOpenMillis", 30000));
+            retryBudget = new RetryBudget(SettingsLoader.getPerformanceSetting("lisRetryBudgetPercent", 20) / 100.0, RETRY_BUDGET_RESERVE);
+            maxRetries = (int) SettingsLoader.getPerformanceSetting("lisMaxRetries", 2);
+            retryBaseMillis = SettingsLoader.getPerformanceSetting("lisRetryBaseMillis", 200);
+            identityHeaders = compactRequests ? buildIdentityHeaders(SettingsLoader.getSettings()) : new String[0];
+            // keeps the session cookie the LIS hands out, so later requests
+            // ride on that session instead of logging in again
+            httpClient = HttpClient.newBuilder()
+                    .version(HttpClient.Version.HTTP_2)
+                    .connectTimeout(Duration.ofMillis(SettingsLoader.getPerformanceSetting("lisConnectTimeoutMillis", 5000)))
+                    .sslContext(sslContext)
+                    .cookieHandler(new CookieManager())
+                    .build();
+        }
+        return httpClient;
+    }
+
+    /**
+     * Request body buffer that is reused by its thread, so serializing a
+     * request does not grow a new buffer each time.
+     */
+    private static class RequestBuffer extends ByteArrayOutputStream {
+
+        RequestBuffer() {
+            super(8192);
+        }
+
+        void trim() {
+            if (buf.length > MAX_RETAINED_BUFFER) {
+                buf = new byte[8192];
+                count = 0;
+            }
+        }
+    }
+
+    /**
+     * What became of a {@link #pushResults(DataBundle)} call.
+     */
+    public static class PushResult {
+
+        private final boolean delivered;
+        private final boolean retryable;
+        private final List<ResultsRecord> rejected;
+        private final String failure;
+
+        private PushResult(boolean delivered, boolean retryable, List<ResultsRecord> rejected, String failure) {
+            this.delivered = delivered;
+            this.retryable = retryable;
+            this.rejected = rejected;
+            this.failure = failure;
+        }
+
+        static PushResult delivered(List<ResultsRecord> rejected) {
+            return new PushResult(true, false, rejected, null);
+        }
+
+        static PushResult retryable(String failure) {
+            return new PushResult(false, true, new ArrayList<>(), failure);
+        }
+
+        static PushResult permanent(String failure) {
+            return new PushResult(false, false, new ArrayList<>(), failure);
+        }
+
+        /**
+         * @return true when the LIS answered the request, possibly rejecting
+         * some of its records
+         */
+        public boolean isDelivered() {
+            return delivered;
+        }
+
+        /**
+         * @return true when the request failed in a way that sending it again
+         * later may fix: the LIS could not be reached, had its circuit open
+         * or answered with a server error
+         */
+        public boolean isRetryable() {
+            return retryable;
+        }
+
+        /**
+         * @return the records the LIS did not accept in a delivered request
+         */
+        public List<ResultsRecord> getRejected() {
+            return rejected;
+        }
+
+        /**
+         * @return why the request failed, or null when it was delivered
+         */
+        public String getFailure() {
+            return failure;
+        }
+    }
+
+    /**
+     * Thrown instead of calling the LIS while its circuit is open.
+     */
+    static class LisUnavailableException extends IOException {
+
+        LisUnavailableException() {
+            super("LIS circuit is open");
         }
     }
 
@@ -0,0 +1,39 @@
+package org.carecode.mw.lims.mw.MaglumiX3;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the latencies of the most recent calls and reports their
+ * percentiles.
+ */
+public class LatencyTracker {
+
+    private static final int MIN_SAMPLES = 20;
+
+    private final long[] samples;
+    private int count;
+    private int next;
+
+    public LatencyTracker(int window) {
+        this.samples = new long[window];
+    }
+
+    public synchronized void record(long millis) {
+        samples[next] = millis;
+        next = (next + 1) % samples.length;
+        count = Math.min(count + 1, samples.length);
+    }
+
+    /**
+     * @return the percentile in milliseconds, or -1 while too few calls have
+     * been seen
+     */
+    public synchronized long percentile(double percentile) {
+        if (count < MIN_SAMPLES) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        return sorted[Math.min(count - 1, (int) Math.ceil(percentile * count) - 1)];
+    }
+}
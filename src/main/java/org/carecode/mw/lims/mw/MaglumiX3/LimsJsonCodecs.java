@@ -0,0 +1,432 @@
+package org.carecode.mw.lims.mw.MaglumiX3;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.annotations.SerializedName;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.carecode.lims.libraries.DataBundle;
+import org.carecode.lims.libraries.MiddlewareSettings;
+import org.carecode.lims.libraries.OrderRecord;
+import org.carecode.lims.libraries.PatientRecord;
+import org.carecode.lims.libraries.QueryRecord;
+import org.carecode.lims.libraries.ResultsRecord;
+
+/**
+ * Gson type adapters for the bundles exchanged with the LIS that read
+ * without reflection.
+ *
+ * Writing is left to Gson's reflective adapters, so every field of the
+ * library classes goes out as before, including fields added in later
+ * versions. Reading goes straight from the JsonReader into the records
+ * through their constructors, skipping unknown fields. A hand-written reader
+ * is only used when the fields it reads are exactly the fields Gson finds in
+ * the library class; when the library gains, loses or renames a field, the
+ * class is read reflectively again and a warning is logged, so no field is
+ * dropped silently.
+ */
+final class LimsJsonCodecs {
+
+    private static final Logger logger = LogManager.getLogger(LimsJsonCodecs.class);
+
+    private LimsJsonCodecs() {
+    }
+
+    static Gson create() {
+        return new GsonBuilder()
+                .registerTypeAdapterFactory(new ReaderFactory())
+                .create();
+    }
+
+    /**
+     * Pairs the reflective adapter of a library class, for writing, with its
+     * hand-written reader.
+     */
+    private static class ReaderFactory implements TypeAdapterFactory {
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+            Class<? super T> rawType = type.getRawType();
+            RecordReader<?> reader;
+            if (rawType == DataBundle.class) {
+                reader = new DataBundleReader(gson);
+            } else if (rawType == QueryRecord.class) {
+                reader = new QueryRecordReader();
+            } else if (rawType == PatientRecord.class) {
+                reader = new PatientRecordReader();
+            } else if (rawType == OrderRecord.class) {
+                reader = new OrderRecordReader(gson.getAdapter(Date.class));
+            } else if (rawType == ResultsRecord.class) {
+                reader = new ResultsRecordReader();
+            } else {
+                return null;
+            }
+            TypeAdapter<T> reflective = gson.getDelegateAdapter(this, type);
+            Set<String> classFields = serializedFields(rawType);
+            if (!classFields.equals(reader.fields)) {
+                logger.warn("Fields of " + rawType.getName() + " " + classFields + " differ from " + reader.fields
+                        + ", reading it reflectively");
+                return reflective;
+            }
+            return new ReadOnlyCodec<>(reflective, (RecordReader<T>) reader);
+        }
+    }
+
+    private static class ReadOnlyCodec<T> extends TypeAdapter<T> {
+
+        private final TypeAdapter<T> writer;
+        private final RecordReader<T> reader;
+
+        ReadOnlyCodec(TypeAdapter<T> writer, RecordReader<T> reader) {
+            this.writer = writer;
+            this.reader = reader;
+        }
+
+        @Override
+        public void write(JsonWriter out, T value) throws IOException {
+            writer.write(out, value);
+        }
+
+        @Override
+        public T read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            return reader.read(in);
+        }
+    }
+
+    /**
+     * The JSON names Gson gives the fields of a class and its superclasses.
+     */
+    private static Set<String> serializedFields(Class<?> type) {
+        Set<String> names = new HashSet<>();
+        for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers()) || Modifier.isTransient(field.getModifiers()) || field.isSynthetic()) {
+                    continue;
+                }
+                SerializedName name = field.getAnnotation(SerializedName.class);
+                names.add(name == null ? field.getName() : name.value());
+            }
+        }
+        return names;
+    }
+
+    private abstract static class RecordReader<T> {
+
+        final Set<String> fields;
+
+        RecordReader(String... fields) {
+            this.fields = new HashSet<>(Arrays.asList(fields));
+        }
+
+        /**
+         * Reads an object; null has been dealt with.
+         */
+        abstract T read(JsonReader in) throws IOException;
+    }
+
+    private static class DataBundleReader extends RecordReader<DataBundle> {
+
+        private final Gson gson;
+
+        DataBundleReader(Gson gson) {
+            super("middlewareSettings", "patientRecord", "resultsRecords", "queryRecords", "orderRecords");
+            this.gson = gson;
+        }
+
+        @Override
+        DataBundle read(JsonReader in) throws IOException {
+            DataBundle bundle = new DataBundle();
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "middlewareSettings":
+                        bundle.setMiddlewareSettings(gson.getAdapter(MiddlewareSettings.class).read(in));
+                        break;
+                    case "patientRecord":
+                        bundle.setPatientRecord(gson.getAdapter(PatientRecord.class).read(in));
+                        break;
+                    case "resultsRecords":
+                        readList(in, bundle.getResultsRecords(), gson.getAdapter(ResultsRecord.class));
+                        break;
+                    case "queryRecords":
+                        readList(in, bundle.getQueryRecords(), gson.getAdapter(QueryRecord.class));
+                        break;
+                    case "orderRecords":
+                        readList(in, bundle.getOrderRecords(), gson.getAdapter(OrderRecord.class));
+                        break;
+                    default:
+                        in.skipValue();
+                        break;
+                }
+            }
+            in.endObject();
+            return bundle;
+        }
+    }
+
+    private static class QueryRecordReader extends RecordReader<QueryRecord> {
+
+        QueryRecordReader() {
+            super("frameNumber", "sampleId", "universalTestId", "queryType");
+        }
+
+        @Override
+        QueryRecord read(JsonReader in) throws IOException {
+            int frameNumber = 0;
+            String sampleId = null;
+            String universalTestId = null;
+            String queryType = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "frameNumber":
+                        frameNumber = readInt(in);
+                        break;
+                    case "sampleId":
+                        sampleId = readString(in);
+                        break;
+                    case "universalTestId":
+                        universalTestId = readString(in);
+                        break;
+                    case "queryType":
+                        queryType = readString(in);
+                        break;
+                    default:
+                        in.skipValue();
+                        break;
+                }
+            }
+            in.endObject();
+            return new QueryRecord(frameNumber, sampleId, universalTestId, queryType);
+        }
+    }
+
+    private static class PatientRecordReader extends RecordReader<PatientRecord> {
+
+        PatientRecordReader() {
+            super("frameNumber", "patientId", "additionalId", "patientName", "patientSecondName", "patientSex",
+                    "race", "dob", "patientAddress", "patientPhoneNumber", "attendingDoctor");
+        }
+
+        @Override
+        PatientRecord read(JsonReader in) throws IOException {
+            int frameNumber = 0;
+            String patientId = null;
+            String additionalId = null;
+            String patientName = null;
+            String patientSecondName = null;
+            String patientSex = null;
+            String race = null;
+            String dob = null;
+            String patientAddress = null;
+            String patientPhoneNumber = null;
+            String attendingDoctor = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "frameNumber":
+                        frameNumber = readInt(in);
+                        break;
+                    case "patientId":
+                        patientId = readString(in);
+                        break;
+                    case "additionalId":
+                        additionalId = readString(in);
+                        break;
+                    case "patientName":
+                        patientName = readString(in);
+                        break;
+                    case "patientSecondName":
+                        patientSecondName = readString(in);
+                        break;
+                    case "patientSex":
+                        patientSex = readString(in);
+                        break;
+                    case "race":
+                        race = readString(in);
+                        break;
+                    case "dob":
+                        dob = readString(in);
+                        break;
+                    case "patientAddress":
+                        patientAddress = readString(in);
+                        break;
+                    case "patientPhoneNumber":
+                        patientPhoneNumber = readString(in);
+                        break;
+                    case "attendingDoctor":
+                        attendingDoctor = readString(in);
+                        break;
+                    default:
+                        in.skipValue();
+                        break;
+                }
+            }
+            in.endObject();
+            return new PatientRecord(frameNumber, patientId, additionalId, patientName, patientSecondName, patientSex,
+                    race, dob, patientAddress, patientPhoneNumber, attendingDoctor);
+        }
+    }
+
+    private static class OrderRecordReader extends RecordReader<OrderRecord> {
+
+        private final TypeAdapter<Date> dates;
+
+        OrderRecordReader(TypeAdapter<Date> dates) {
+            super("frameNumber", "sampleId", "testNames", "specimenCode", "orderDateTime", "testInformation");
+            this.dates = dates;
+        }
+
+        @Override
+        OrderRecord read(JsonReader in) throws IOException {
+            int frameNumber = 0;
+            String sampleId = null;
+            List<String> testNames = new ArrayList<>();
+            String specimenCode = null;
+            Date orderDateTime = null;
+            String testInformation = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "frameNumber":
+                        frameNumber = readInt(in);
+                        break;
+                    case "sampleId":
+                        sampleId = readString(in);
+                        break;
+                    case "testNames":
+                        if (in.peek() == JsonToken.NULL) {
+                            in.nextNull();
+                            break;
+                        }
+                        in.beginArray();
+                        while (in.hasNext()) {
+                            testNames.add(readString(in));
+                        }
+                        in.endArray();
+                        break;
+                    case "specimenCode":
+                        specimenCode = readString(in);
+                        break;
+                    case "orderDateTime":
+                        orderDateTime = dates.read(in);
+                        break;
+                    case "testInformation":
+                        testInformation = readString(in);
+                        break;
+                    default:
+                        in.skipValue();
+                        break;
+                }
+            }
+            in.endObject();
+            return new OrderRecord(frameNumber, sampleId, testNames, specimenCode, orderDateTime, testInformation);
+        }
+    }
+
+    private static class ResultsRecordReader extends RecordReader<ResultsRecord> {
+
+        ResultsRecordReader() {
+            super("frameNumber", "testCode", "resultValue", "resultUnits", "resultDateTime", "instrumentName", "sampleId", "status");
+        }
+
+        @Override
+        ResultsRecord read(JsonReader in) throws IOException {
+            int frameNumber = 0;
+            String testCode = null;
+            String resultValue = null;
+            String resultUnits = null;
+            String resultDateTime = null;
+            String instrumentName = null;
+            String sampleId = null;
+            String status = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "frameNumber":
+                        frameNumber = readInt(in);
+                        break;
+                    case "testCode":
+                        testCode = readString(in);
+                        break;
+                    case "resultValue":
+                        resultValue = readString(in);
+                        break;
+                    case "resultUnits":
+                        resultUnits = readString(in);
+                        break;
+                    case "resultDateTime":
+                        resultDateTime = readString(in);
+                        break;
+                    case "instrumentName":
+                        instrumentName = readString(in);
+                        break;
+                    case "sampleId":
+                        sampleId = readString(in);
+                        break;
+                    case "status":
+                        status = readString(in);
+                        break;
+                    default:
+                        in.skipValue();
+                        break;
+                }
+            }
+            in.endObject();
+            ResultsRecord result = new ResultsRecord(frameNumber, testCode, resultValue, resultUnits, resultDateTime, instrumentName, sampleId);
+            result.setStatus(status);
+            return result;
+        }
+    }
+
+    private static <T> void readList(JsonReader in, List<T> target, TypeAdapter<T> adapter) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return;
+        }
+        in.beginArray();
+        while (in.hasNext()) {
+            T value = adapter.read(in);
+            if (value != null) {
+                target.add(value);
+            }
+        }
+        in.endArray();
+    }
+
+    private static String readString(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        return in.nextString();
+    }
+
+    private static int readInt(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return 0;
+        }
+        return in.nextInt();
+    }
+}
@@ -0,0 +1,96 @@
+package org.carecode.mw.lims.mw.MaglumiX3;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Circuit breaker in front of the LIS.
+ *
+ * After {@code failureThreshold} failed calls in a row the circuit opens and
+ * calls fail at once, without touching the network, for {@code openMillis}.
+ * Then a single trial call is let through: if it succeeds the circuit closes
+ * again, if it fails the circuit stays open for another period. A trial that
+ * ends without an outcome, because its thread was interrupted or hit an
+ * unexpected error, is {@link #recordAbandoned() abandoned} and the next call
+ * becomes the trial; a trial that has not reported back after another
+ * {@code openMillis} is given up on the same way.
+ */
+public class LisCircuitBreaker {
+
+    private static final Logger logger = LogManager.getLogger(LisCircuitBreaker.class);
+
+    private enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openMillis;
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+    private long trialStartedAt;
+
+    public LisCircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * Whether a call may go out now. While half open only the first caller
+     * gets through.
+     */
+    public synchronized boolean allowRequest() {
+        switch (state) {
+            case OPEN:
+                if (System.currentTimeMillis() - openedAt < openMillis) {
+                    return false;
+                }
+                state = State.HALF_OPEN;
+                trialStartedAt = System.currentTimeMillis();
+                logger.info("Trying the LIS again");
+                return true;
+            case HALF_OPEN:
+                if (System.currentTimeMillis() - trialStartedAt < openMillis) {
+                    return false;
+                }
+                trialStartedAt = System.currentTimeMillis();
+                logger.warn("Trial call to the LIS never reported back, trying again");
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    public synchronized void recordSuccess() {
+        if (state != State.CLOSED) {
+            logger.info("LIS is reachable again, circuit closed");
+        }
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+    }
+
+    public synchronized void recordFailure() {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+            logger.warn("LIS failed " + consecutiveFailures + " times in a row, circuit open for " + openMillis + " ms");
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * For a call that was let through but ended without a success or failure
+     * to report. A trial call gives way to the next caller; the circuit
+     * does not stay half open with nobody to close it.
+     */
+    public synchronized void recordAbandoned() {
+        if (state == State.HALF_OPEN) {
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis() - openMillis;
+        }
+    }
+
+    public synchronized boolean isOpen() {
+        return state == State.OPEN && System.currentTimeMillis() - openedAt < openMillis;
+    }
+}
@@ -12,6 +12,10 @@ public class MaglumiX3 {
     static boolean testingPullingTestOrders = false;
     static boolean testingPushingTestResults = false;
 
+    static final String COMMUNICATION_TYPE_NIO = "TCP/IP-NIO";
+    static final String COMMUNICATION_TYPE_MLLP = "HL7-MLLP";
+    static final String SOCKET_COMMUNICATION_TYPE_CLIENT = "Client";
+
     public static final Logger logger = LogManager.getLogger(MaglumiX3.class);
 
     public static void main(String[] args) {
@@ -53,8 +57,28 @@ public class MaglumiX3 {
         }
 
         int port = SettingsLoader.getSettings().getAnalyzerDetails().getAnalyzerPort();
+        String communicationType = SettingsLoader.getSettings().getAnalyzerDetails().getCommunicationType();
+        String socketCommunicationType = SettingsLoader.getSettings().getAnalyzerDetails().getSocketCommunicationType();
+        boolean clientMode = SOCKET_COMMUNICATION_TYPE_CLIENT.equalsIgnoreCase(socketCommunicationType);
         MaglumiX3Server server = new MaglumiX3Server();
-        server.start(port);
+        if (COMMUNICATION_TYPE_MLLP.equalsIgnoreCase(communicationType)) {
+            logger.info("Using HL7 over MLLP.");
+            MllpServer mllpServer = new MllpServer(server);
+            if (clientMode) {
+                String analyzerIp = SettingsLoader.getSettings().getAnalyzerDetails().getAnalyzerIP();
+                new AnalyzerConnector(mllpServer::newConnection).start(analyzerIp, port);
+            } else {
+                mllpServer.start(port);
+            }
+        } else if (clientMode) {
+            String analyzerIp = SettingsLoader.getSettings().getAnalyzerDetails().getAnalyzerIP();
+            new AnalyzerConnector(server).start(analyzerIp, port);
+        } else if (COMMUNICATION_TYPE_NIO.equalsIgnoreCase(communicationType)) {
+            logger.info("Using non-blocking transport.");
+            new AnalyzerNioServer(server).start(port);
+        } else {
+            server.start(port);
+        }
     }
 
 }
@@ -1,20 +1,18 @@
 package org.carecode.mw.lims.mw.MaglumiX3;
 
-import ca.uhn.hl7v2.DefaultHapiContext;
 import ca.uhn.hl7v2.HL7Exception;
-import ca.uhn.hl7v2.HapiContext;
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.text.SimpleDateFormat;
-import java.util.Arrays;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.carecode.lims.libraries.DataBundle;
@@ -27,8 +25,6 @@ import ca.uhn.hl7v2.model.Segment;
 import ca.uhn.hl7v2.model.v25.group.OUL_R22_ORDER;
 import ca.uhn.hl7v2.model.v25.group.OUL_R22_RESULT;
 import ca.uhn.hl7v2.model.v25.group.OUL_R22_SPECIMEN;
-import ca.uhn.hl7v2.parser.Parser;
-import ca.uhn.hl7v2.parser.PipeParser;
 import ca.uhn.hl7v2.model.v25.message.OUL_R22;
 import ca.uhn.hl7v2.model.v25.segment.MSH;
 import ca.uhn.hl7v2.model.v25.segment.NTE;
@@ -36,7 +32,6 @@ import ca.uhn.hl7v2.model.v25.segment.OBR;
 import ca.uhn.hl7v2.model.v25.segment.OBX;
 import ca.uhn.hl7v2.model.v25.segment.ORC;
 import ca.uhn.hl7v2.model.v25.segment.SPM;
-import java.util.logging.Level;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.ArrayList;
@@ -60,28 +55,6 @@ public class MaglumiX3Server {
     static String componentD = "^";
     static String escapeD = "&";
 
-    boolean receivingQuery;
-    boolean receivingResults;
-    boolean respondingQuery;
-    boolean respondingResults;
-    boolean testing;
-    boolean needToSendHeaderRecordForQuery;
-    boolean needToSendPatientRecordForQuery;
-    boolean needToSendOrderingRecordForQuery;
-    boolean needToSendEotForRecordForQuery;
-
-    private DataBundle patientDataBundle = new DataBundle();
-
-    String patientId;
-    static String sampleId;
-    List<String> testNames;
-    int frameNumber;
-    char terminationCode = 'N';
-    PatientRecord patientRecord;
-    ResultsRecord resultRecord;
-    OrderRecord orderRecord;
-    QueryRecord queryRecord;
-
     private static final int START_OF_TEXT = 2;  // ASCII value for STX
     private static final int END_OF_TEXT = 3;    // ASCII value for ETX
     private static final int END_OF_TRANSMISSION = 4; // ASCII value for EOT
@@ -89,84 +62,15 @@ public class MaglumiX3Server {
     private static final int ACKNOWLEDGEMENT = 6; // ASCII value for ACK
     private static final int CARRIAGE_RETURN = 13; // ASCII value for CR, add if needed
 
-    private ServerSocket serverSocket;
-
-    private void handleClient(Socket clientSocket) {
-        try (InputStream in = new BufferedInputStream(clientSocket.getInputStream()); OutputStream out = new BufferedOutputStream(clientSocket.getOutputStream())) {
-            StringBuilder asciiDebugInfo = new StringBuilder();
-            boolean sessionActive = true;
-            boolean inChecksum = false;
-            int checksumCount = 0;
-
-            while (sessionActive) {
-                int data = in.read();
-
-                if (inChecksum) {
-                    asciiDebugInfo.append((char) data).append(" (").append(data).append(") ");  // Append character and its ASCII value
-                    checksumCount++;
-                    if (checksumCount == 4) {
-                        inChecksum = false;
-                        checksumCount = 0;
-                        asciiDebugInfo.setLength(0);  // Clear the StringBuilder for the next use
-                    }
-                    continue;
-                }
+    private static final int MAX_CONCURRENT_SESSIONS = 32;
 
-                switch (data) {
-                    case ENQ:
-                        logger.debug("Received ENQ");
-                        out.write(ACK);
-                        out.flush();
-                        logger.debug("Sent ACK");
-                        break;
-                    case ACK:
-                        logger.debug("ACK Received.");
-                        handleAck(clientSocket, out);
-                        break;
-                    case STX:
-                        inChecksum = true;
-                        StringBuilder message = new StringBuilder();
-                        asciiDebugInfo = new StringBuilder();  // To store ASCII values for debugging
-
-                        while ((data = in.read()) != ETX) {
-                            if (data == -1) {
-                                break;
-                            }
-                            message.append((char) data);
-                            asciiDebugInfo.append("[").append(data).append("] ");  // Append ASCII value in brackets
-                        }
-                        logger.debug("Message received: " + message);
-                        processMessage(message.toString(), clientSocket);
-                        out.write(ACK);
-                        out.flush();
-                        logger.debug("Sent ACK after STX-ETX block");
-                        break;
-                    case EOT:
-                        logger.debug("EOT Received");
-                        handleEot(out);
-                        break;
-                    default:
-                        if (!inChecksum) {
-                            logger.debug("Received unexpected data: " + (char) data + " (ASCII: " + data + ")");
-                            asciiDebugInfo.append((char) data).append(" (").append(data).append(") ");
-                        } else {
-                            logger.debug("Data within checksum calculation: " + (char) data + " (ASCII: " + data + ")");
-                        }
-                        break;
-                }
-            }
-        } catch (IOException e) {
-            logger.error("Error during client communication", e);
-        }
-    }
+    private ServerSocket serverSocket;
+    private ExecutorService sessionExecutor;
 
     public void processHL7Messages(String message) {
-        // Create a HAPI Parser
-        Parser parser = new PipeParser();
-
         try {
             // Parse the message string into a Message object
-            Message hapiMsg = parser.parse(message);
+            Message hapiMsg = Hl7ParsingService.getInstance().parse(message);
 
             // Check if the parsed message is an ORU_R01 (Observation Result)
             if (hapiMsg instanceof OUL_R22_RESULT) {
@@ -209,46 +113,34 @@ public class MaglumiX3Server {
         return message;
     }
 
-    // Process each individual HL7 message and determine action based on message type
-    private void processIndividualHL7Message(String message) {
-        HapiContext context = new DefaultHapiContext();
-        Parser parser = context.getPipeParser();
-
+    /**
+     * Processes one HL7 message according to its type.
+     *
+     * @param source the analyzer the message came from
+     * @return false when the results of the message could not be queued and
+     * it has to be processed again; a message that cannot be processed at
+     * all is logged and counts as done
+     */
+    boolean processIndividualHL7Message(String message, String source) {
         try {
-//            message = cleanMessage(message);
-
-            Message hl7Message = parser.parse(message);
-            MSH msh = (MSH) hl7Message.get("MSH");
-            String messageType = msh.getMessageType().getMessageCode().getValue() + "^" + msh.getMessageType().getTriggerEvent().getValue();
+            // Read the type from MSH-9, results are extracted without a full parse
+            String messageType = Hl7ResultExtractor.messageType(message);
+            if (messageType == null) {
+                logger.warn("HL7 message without MSH segment");
+                return true;
+            }
 
             switch (messageType) {
                 case "OUL^R22":
-                    handleResultMessage("");
-                    break;
-                case "QRY^Q01": // Example query message type
-                    handleQueryMessage(hl7Message);
-                    break;
+                    return handleResultMessageHL7(message, source);
                 default:
-                    System.err.println("Unhandled message type: " + messageType);
+                    logger.warn("Unhandled message type: " + messageType);
                     break;
             }
         } catch (Exception e) {
-            System.err.println("Error processing individual HL7 message: " + e.getMessage());
-        } finally {
-            try {
-                context.close();
-            } catch (IOException ex) {
-                java.util.logging.Logger.getLogger(MaglumiX3Server.class.getName()).log(Level.SEVERE, null, ex);
-            }
+            logger.error("Error processing individual HL7 message", e);
         }
-    }
-
-    // Create a QueryRecord from a parsed HL7 message
-    private void handleQueryMessage(Message hl7Message) {
-        // Assume we extract sampleId and create a QueryRecord accordingly
-        String sampleId = extractSampleId(hl7Message);  // Implement this method based on your message structure
-        QueryRecord qr = new QueryRecord(0, sampleId, "universalTestId", "queryType");
-        LISCommunicator.pullTestOrdersForSampleRequests(queryRecord);
+        return true;
     }
 
     public String extractSampleId(Message hl7Message) {
@@ -335,12 +227,9 @@ public class MaglumiX3Server {
     private void processHL7Message(String message) {
         logger.info("Processing HL7 Message: " + message);
 
-        // Create a parser instance (HAPI library)
-        Parser parser = new PipeParser();
-
         try {
             // Parse the message string into a Message object
-            Message hl7Message = parser.parse(message);
+            Message hl7Message = Hl7ParsingService.getInstance().parse(message);
 
             // Extract MSH segment
             Segment mshSegment = (Segment) hl7Message.get("MSH");
@@ -372,63 +261,77 @@ public class MaglumiX3Server {
         List<QueryRecord> records = new ArrayList<>();
         String[] individualMessages = combinedMessages.split("MSH");
 
-        HapiContext context = new DefaultHapiContext();
-        Parser parser = context.getPipeParser();
-
-        try {
-            for (String rawMessage : individualMessages) {
-                if (!rawMessage.trim().isEmpty()) {
-                    // Prepend "MSH" as it's removed by the split operation
-                    String message = "MSH" + rawMessage;
-
-                    try {
-                        Message hl7Message = parser.parse(message);
-                        // Manually navigate to the right segment and field to extract the sample ID
-                        String sampleId = extractSampleId(hl7Message);
-                        QueryRecord qr = new QueryRecord(0, sampleId, "universalTestId", "queryType");
-                        records.add(qr);
-                    } catch (Exception e) {
-                        System.err.println("Error parsing message: " + e.getMessage());
-                    }
+        Hl7ParsingService parser = Hl7ParsingService.getInstance();
+
+        for (String rawMessage : individualMessages) {
+            if (!rawMessage.trim().isEmpty()) {
+                // Prepend "MSH" as it's removed by the split operation
+                String message = "MSH" + rawMessage;
+
+                try {
+                    Message hl7Message = parser.parse(message);
+                    // Manually navigate to the right segment and field to extract the sample ID
+                    String sampleId = extractSampleId(hl7Message);
+                    QueryRecord qr = new QueryRecord(0, sampleId, "universalTestId", "queryType");
+                    records.add(qr);
+                } catch (Exception e) {
+                    System.err.println("Error parsing message: " + e.getMessage());
                 }
             }
-        } finally {
-            context.close();
         }
 
         return records;
     }
 
     
-    private void handleResultMessage(String astmMessage) {
-        System.out.println("ASTM Raw Message = " + astmMessage);
-
-        // Regex to extract sample ID from the 'O' record
-        String sampleIdRegex = "O\\|1\\|([^\\|^]*)";
-        Pattern sampleIdPattern = Pattern.compile(sampleIdRegex);
-        Matcher sampleIdMatcher = sampleIdPattern.matcher(astmMessage);
-        String sampleId = "";
-        if (sampleIdMatcher.find()) {
-            sampleId = sampleIdMatcher.group(1).trim(); // Extract the sample ID, remove any leading/trailing spaces
-        }
+    /**
+     * Parses the results of an ASTM message and queues them for upload.
+     *
+     * @return false when the results could not be queued
+     */
+    boolean handleResultMessage(String astmMessage) {
+        AstmFieldCursor fields = new AstmFieldCursor();
+        fields.useHeaderDelimiters(astmMessage);
+        return handleResultMessage(astmMessage, new AstmMessageIndex().scan(astmMessage, fields.getFieldDelimiter()), fields, "", null);
+    }
 
-        // Regex to find all 'R' records (result records)
-        String resultsRegex = "^R\\|.*$";
-        Pattern resultsPattern = Pattern.compile(resultsRegex, Pattern.MULTILINE);
-        Matcher resultsMatcher = resultsPattern.matcher(astmMessage);
-        ArrayList<String> resultRecords = new ArrayList<>();
+    /**
+     * Like {@link #handleResultMessage(String)}, reading the records from an
+     * index of the message the session has already built.
+     *
+     * @param sampleId the sample of the results when the message holds no
+     * order record 1, as when the analyzer sends the O record in a frame of
+     * its own
+     * @param source the analyzer the message came from
+     */
+    boolean handleResultMessage(String astmMessage, AstmMessageIndex records, AstmFieldCursor fields, String sampleId, String source) {
+        DataBundle db = parseResultMessage(records, fields, sampleId, SettingsLoader.getSettings().getAnalyzerDetails().getAnalyzerName());
+        db.setMiddlewareSettings(SettingsLoader.getSettings());
+        //this is fine. It should work, can we run and see
+        return ResultUploadQueue.getInstance().submit(db, source);
+    }
 
-        while (resultsMatcher.find()) {
-            resultRecords.add(resultsMatcher.group()); // Add each result record to the list
+    /**
+     * The results of an indexed ASTM message with the patient record they are
+     * uploaded under. Each result keeps the date and time the analyzer gave
+     * it in R-13, which tells a result sent again apart from a new one.
+     */
+    static DataBundle parseResultMessage(AstmMessageIndex records, AstmFieldCursor fields, String sampleId, String instrumentName) {
+        // The sample ID is the first component of the specimen ID of order record 1
+        for (int i = records.first('O'); i >= 0; i = records.next('O', i + 1)) {
+            if (records.select(fields, i).fieldEquals(1, "1")) {
+                sampleId = fields.component(2, 0).trim(); // Extract the sample ID, remove any leading/trailing spaces
+                break;
+            }
+        }
+        if (sampleId == null) {
+            sampleId = "";
         }
 
-        // Output the extracted sample ID and result records
-        System.out.println("Sample ID: " + sampleId);
-        System.out.println("Result Records:");
+        logger.debug("Results of sample {}", sampleId);
         
         
         DataBundle db = new DataBundle();
-        db.setMiddlewareSettings(SettingsLoader.getSettings());
         
         
         PatientRecord patientRecord = new PatientRecord(0, sampleId, sampleId,
@@ -436,23 +339,27 @@ public class MaglumiX3Server {
 
         db.setPatientRecord(patientRecord);
 
-        for (String record : resultRecords) {
+        for (int i = records.first('R'); i >= 0; i = records.next('R', i + 1)) {
             String testCode = ""; // Test code, e.g., TSH, FT4
             String testResult = ""; // Numeric result of the test
             String referenceRange = ""; // Reference range
             String unit = ""; // Unit of measurement
 
             // Parsing each record for details
-            String[] parts = record.split("\\|");
-            if (parts.length > 3) {
-                // Adjust this line based on the actual placement of the test code
-                String[] testDetails = parts[2].split("\\^");
-                if (testDetails.length > 1) {
-                    testCode = testDetails[testDetails.length - 1]; // Assuming the code is the last part after the last caret
+            records.select(fields, i);
+            if (fields.fieldCount() > 3) {
+                // The code is the last component that is not empty, as in ^^^TSH
+                for (int component = fields.componentCount(2) - 1; component > 0; component--) {
+                    String code = fields.component(2, component);
+                    if (!code.isEmpty()) {
+                        testCode = code;
+                        break;
+                    }
                 }
-                testResult = parts[3]; // Result value
-                unit = parts[4]; // Unit
-                referenceRange = parts[5]; // Reference range
+                testResult = fields.field(3); // Result value
+                unit = fields.field(4); // Unit
+                referenceRange = fields.field(5); // Reference range
+                String resultDateTime = fields.field(12); // Date and time the test was completed
 
                 QueryRecord qr = new QueryRecord(0, sampleId, sampleId, "");
                 db.getQueryRecords().add(qr);
@@ -461,19 +368,15 @@ public class MaglumiX3Server {
                         testCode,
                         testResult,
                         unit,
-                        "",
-                        SettingsLoader.getSettings().getAnalyzerDetails().getAnalyzerName(),
+                        resultDateTime,
+                        instrumentName,
                         sampleId);
                 db.getResultsRecords().add(r1);
 
             }
-            System.out.println("Test Code: " + testCode);
-            System.out.println("Result: " + testResult);
-            System.out.println("Unit: " + unit);
-            System.out.println("Reference Range: " + referenceRange);
+            logger.debug("Result {} = {} {}, reference range {}", testCode, testResult, unit, referenceRange);
         }
-        //this is fine. It should work, can we run and see
-        LISCommunicator.pushResults(db);
+        return db;
     }
     
     
@@ -623,31 +526,40 @@ public class MaglumiX3Server {
         LISCommunicator.pushResults(db);
     }
 
-    private void handleResultMessageHL7(String hl7RawMessage) throws HL7Exception {
+    private boolean handleResultMessageHL7(String hl7RawMessage, String source) throws HL7Exception {
         logger.debug("Starting to process raw HL7 message.");
 
+        long start = System.nanoTime();
+        String instrumentName = SettingsLoader.getSettings().getAnalyzerDetails().getAnalyzerName();
+        List<ResultsRecord> extracted = new Hl7ResultExtractor().extract(hl7RawMessage, instrumentName);
+        if (extracted != null) {
+            logger.debug("Extracted " + extracted.size() + " results in " + (System.nanoTime() - start) / 1000 + " us");
+            return submitHL7Results(extracted, source);
+        }
+        logger.debug("Message needs the full HL7 parse.");
+
         // Clean the HL7 message
         String cleanedMessage = cleanMessage(hl7RawMessage);
         logger.debug("Cleaned HL7 message: " + cleanedMessage);
 
         // Parse the cleaned message
-        PipeParser pipeParser = new PipeParser();
         Message hl7Message;
         try {
-            hl7Message = pipeParser.parse(cleanedMessage);
+            hl7Message = Hl7ParsingService.getInstance().parse(cleanedMessage);
         } catch (HL7Exception e) {
             logger.error("Failed to parse HL7 message", e);
-            return;
+            return true;
         }
 
         // Ensure the message is of type OUL_R22
         if (!(hl7Message instanceof OUL_R22)) {
             logger.error("Message is not an instance of OUL_R22");
-            return;
+            return true;
         }
 
         logger.debug("Message is an instance of OUL_R22.");
         OUL_R22 message = (OUL_R22) hl7Message;
+        List<ResultsRecord> results = new ArrayList<>();
 
         // Iterate through all SPECIMEN groups to extract the Sample ID
         for (int i = 0; i < message.getSPECIMENReps(); i++) {
@@ -726,23 +638,9 @@ public class MaglumiX3Server {
                                     logger.info("Result Units: " + resultUnits);
                                     logger.info("Result DateTime: " + resultDateTime);
 
-                                    DataBundle db = new DataBundle();
-                                    db.setMiddlewareSettings(SettingsLoader.getSettings());
-
-                                    PatientRecord patientRecord = new PatientRecord(0, sampleId, sampleId,
-                                            sampleId, sampleId, "", "", "", "Galle", "0715812399", "Niluka Gunasekara");
-
-                                    db.setPatientRecord(patientRecord);
-
-                                    ResultsRecord r1 = new ResultsRecord(1, testCode, resultValueString, resultUnits, resultDateTime,
+                                    results.add(new ResultsRecord(1, testCode, resultValueString, resultUnits, resultDateTime,
                                             SettingsLoader.getSettings().getAnalyzerDetails().getAnalyzerName(),
-                                            sampleId);
-                                    db.getResultsRecords().add(r1);
-
-                                    QueryRecord qr = new QueryRecord(0, sampleId, sampleId, "");
-                                    db.getQueryRecords().add(qr);
-
-                                    LISCommunicator.pushResults(db);
+                                            sampleId));
                                 } else {
                                     logger.warn("OBX segment is null in RESULT group #" + k);
                                 }
@@ -760,6 +658,38 @@ public class MaglumiX3Server {
             }
         }
         logger.info("Processed OUL_R22 message.");
+        return submitHL7Results(results, source);
+    }
+
+    /**
+     * Queues the results of an HL7 message, one bundle per specimen.
+     *
+     * @return false when some of them could not be queued
+     */
+    private boolean submitHL7Results(List<ResultsRecord> results, String source) {
+        Map<String, DataBundle> bundles = new LinkedHashMap<>();
+        for (ResultsRecord result : results) {
+            String sampleId = result.getSampleId();
+            DataBundle db = bundles.get(sampleId);
+            if (db == null) {
+                db = new DataBundle();
+                db.setMiddlewareSettings(SettingsLoader.getSettings());
+                db.setPatientRecord(new PatientRecord(0, sampleId, sampleId,
+                        sampleId, sampleId, "", "", "", "Galle", "0715812399", "Niluka Gunasekara"));
+                db.getQueryRecords().add(new QueryRecord(0, sampleId, sampleId, ""));
+                bundles.put(sampleId, db);
+            }
+            logger.info("Sample " + sampleId + ": " + result.getTestCode() + " = " + result.getResultValue() + " " + result.getResultUnits());
+            db.getResultsRecords().add(result);
+        }
+        boolean queued = true;
+        for (Map.Entry<String, DataBundle> bundle : bundles.entrySet()) {
+            if (!ResultUploadQueue.getInstance().submit(bundle.getValue(), source)) {
+                logger.error("Could not queue the results for sample " + bundle.getKey());
+                queued = false;
+            }
+        }
+        return queued;
     }
 
 // This method can be created to further process or store the assembled data bundle
@@ -771,12 +701,18 @@ public class MaglumiX3Server {
     public void start(int port) {
         try {
             serverSocket = new ServerSocket(port);
+            sessionExecutor = Executors.newFixedThreadPool(MAX_CONCURRENT_SESSIONS, new SessionThreadFactory());
             logger.info("Server started on port " + port);
-            while (true) {
-                try (Socket clientSocket = serverSocket.accept()) {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket clientSocket = serverSocket.accept();
+                    clientSocket.setKeepAlive(true);
                     logger.info("New client connected: " + clientSocket.getInetAddress().getHostAddress());
-                    handleClient(clientSocket);
+                    sessionExecutor.execute(new AnalyzerSession(clientSocket, this));
                 } catch (IOException e) {
+                    if (serverSocket.isClosed()) {
+                        break;
+                    }
                     logger.error("Error handling client connection", e);
                 }
             }
@@ -796,152 +732,20 @@ public class MaglumiX3Server {
         } catch (IOException e) {
             logger.error("Error stopping server", e);
         }
-    }
-
-    private void handleClientOld(Socket clientSocket) {
-        try (InputStream in = new BufferedInputStream(clientSocket.getInputStream()); OutputStream out = new BufferedOutputStream(clientSocket.getOutputStream())) {
-            StringBuilder asciiDebugInfo = new StringBuilder();
-            boolean sessionActive = true;
-            boolean inChecksum = false;
-            int checksumCount = 0;
-
-            while (sessionActive) {
-                int data = in.read();
-
-                if (inChecksum) {
-                    asciiDebugInfo.append((char) data).append(" (").append(data).append(") ");  // Append character and its ASCII value
-                    checksumCount++;
-                    if (checksumCount == 4) {
-                        inChecksum = false;
-                        checksumCount = 0;
-                        asciiDebugInfo.setLength(0);  // Clear the StringBuilder for the next use
-                    }
-                    continue;
-                }
-
-                switch (data) {
-                    case ENQ:
-                        logger.debug("Received ENQ");
-                        out.write(ACK);
-                        out.flush();
-                        logger.debug("Sent ACK");
-                        break;
-                    case ACK:
-                        logger.debug("ACK Received.");
-                        handleAck(clientSocket, out);
-                        break;
-                    case STX:
-                        inChecksum = true;
-                        StringBuilder message = new StringBuilder();
-                        asciiDebugInfo = new StringBuilder();  // To store ASCII values for debugging
-
-                        while ((data = in.read()) != ETX) {
-                            if (data == -1) {
-                                break;
-                            }
-                            message.append((char) data);
-                            asciiDebugInfo.append("[").append(data).append("] ");  // Append ASCII value in brackets
-                        }
-                        logger.debug("Message received: " + message);
-                        processMessage(message.toString(), clientSocket);
-                        out.write(ACK);
-                        out.flush();
-                        logger.debug("Sent ACK after STX-ETX block");
-                        break;
-                    case EOT:
-                        logger.debug("EOT Received");
-                        handleEot(out);
-                        break;
-                    default:
-                        if (!inChecksum) {
-                            logger.debug("Received unexpected data: " + (char) data + " (ASCII: " + data + ")");
-                            asciiDebugInfo.append((char) data).append(" (").append(data).append(") ");
-                        } else {
-                            logger.debug("Data within checksum calculation: " + (char) data + " (ASCII: " + data + ")");
-                        }
-                        break;
-                }
-            }
-        } catch (IOException e) {
-            logger.error("Error during client communication", e);
+        if (sessionExecutor != null) {
+            sessionExecutor.shutdownNow();
         }
     }
 
-    private void handleAck(Socket clientSocket, OutputStream out) throws IOException {
-        System.out.println("handleAck = ");
-        System.out.println("needToSendHeaderRecordForQuery = " + needToSendHeaderRecordForQuery);
-        if (needToSendHeaderRecordForQuery) {
-            logger.debug("Sending Header");
-            String hm = createLimsHeaderRecord();
-            sendResponse(hm, clientSocket);
-            frameNumber = 2;
-            needToSendHeaderRecordForQuery = false;
-            needToSendPatientRecordForQuery = true;
-        } else if (needToSendPatientRecordForQuery) {
-            logger.debug("Creating Patient record ");
-            patientRecord = getPatientDataBundle().getPatientRecord();
-            if (patientRecord.getPatientName() == null) {
-                patientRecord.setPatientName("Buddhika");
-            }
-            patientRecord.setFrameNumber(frameNumber);
-            String pm = createLimsPatientRecord(patientRecord);
-            sendResponse(pm, clientSocket);
-            frameNumber = 3;
-            needToSendPatientRecordForQuery = false;
-            needToSendOrderingRecordForQuery = true;
-        } else if (needToSendOrderingRecordForQuery) {
-            logger.debug("Creating Order record ");
-            if (testNames == null || testNames.isEmpty()) {
-                testNames = Arrays.asList("Gluc GP");
-            }
-            orderRecord = getPatientDataBundle().getOrderRecords().get(0);
-            orderRecord.setFrameNumber(frameNumber);
-            String om = createLimsOrderRecord(orderRecord);
-            sendResponse(om, clientSocket);
-            frameNumber = 4;
-            needToSendOrderingRecordForQuery = false;
-            needToSendEotForRecordForQuery = true;
-        } else if (needToSendEotForRecordForQuery) {
-            System.out.println("Creating an End record = ");
-            String tmq = createLimsTerminationRecord(frameNumber, terminationCode);
-            sendResponse(tmq, clientSocket);
-            needToSendEotForRecordForQuery = false;
-            receivingQuery = false;
-            receivingResults = false;
-            respondingQuery = false;
-            respondingResults = false;
-        } else {
-            out.write(EOT);
-            out.flush();
-            logger.debug("Sent EOT");
-        }
-    }
+    private static class SessionThreadFactory implements ThreadFactory {
 
-    private void sendResponse(String response, Socket clientSocket) {
-        String astmMessage = buildASTMMessage(response);
-        try {
-            OutputStream out = new BufferedOutputStream(clientSocket.getOutputStream());
-            out.write(astmMessage.getBytes());
-            out.flush();
-            logger.debug("Response sent: " + response);
-        } catch (IOException e) {
-            logger.error("Failed to send response", e);
-        }
-    }
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
 
-    private void handleEot(OutputStream out) throws IOException {
-        logger.debug("Handling eot");
-        logger.debug(respondingQuery);
-        if (respondingQuery) {
-            patientDataBundle = LISCommunicator.pullTestOrdersForSampleRequests(patientDataBundle.getQueryRecords().get(0));
-            logger.debug("Starting Transmission to send test requests");
-            out.write(ENQ);
-            out.flush();
-            logger.debug("Sent ENQ");
-        } else if (respondingResults) {
-            LISCommunicator.pushResults(patientDataBundle);
-        } else {
-            logger.debug("Received EOT, ending session");
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "analyzer-session-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
         }
     }
 
@@ -993,6 +797,14 @@ public class MaglumiX3Server {
     }
 
     public String createLimsPatientRecord(PatientRecord patient) {
+        return createLimsPatientRecord(patient, 1);
+    }
+
+    /**
+     * @param sequenceNumber the position of the patient in the message,
+     * counting from 1
+     */
+    public String createLimsPatientRecord(PatientRecord patient, int sequenceNumber) {
         // Delimiter used in the ASTM protocol
         String delimiter = "|";
 
@@ -1000,7 +812,7 @@ public class MaglumiX3Server {
         String patientStart = patient.getFrameNumber() + "P" + delimiter;
 
         // Concatenate patient information fields with actual patient data
-        String patientInfo = "1" + delimiter
+        String patientInfo = sequenceNumber + delimiter
                 + // Sequence Number
                 patient.getPatientId() + delimiter
                 + // Patient ID
@@ -1152,133 +964,33 @@ public class MaglumiX3Server {
     }
 
     public boolean hasResultRecord(String astmMessage) {
-        // Define a regular expression to match lines starting with 'R', followed by frame number and '|'
-        // We use the pattern to ensure it can handle various line terminations and any preceding whitespace
-        String regex = "^(\\s)*R\\|[0-9]+\\|";
-        Pattern pattern = Pattern.compile(regex, Pattern.MULTILINE); // Enable multiline mode
-
-        // Use the pattern matcher to find matches across the whole message
-        if (pattern.matcher(astmMessage).find()) {
-            return true; // Return true if a result record is found
-        }
-
-        return false; // Return false if no result record is found
+        return new AstmMessageIndex().scan(astmMessage).contains('R');
     }
-    
-    public boolean hasQueryRecord(String astmMessage) {
-        // Define a regular expression to match lines starting with 'Q', followed by a sequence number and '|'
-        // The regex considers potential whitespace at the start of the line
-        String regex = "^(\\s)*Q\\|[0-9]+\\|";
-        Pattern pattern = Pattern.compile(regex, Pattern.MULTILINE); // Enable multiline mode
-
-        // Use the pattern matcher to find matches across the whole message
-        if (pattern.matcher(astmMessage).find()) {
-            return true; // Return true if a query record is found
-        }
 
-        return false; // Return false if no query record is found
+    public boolean hasQueryRecord(String astmMessage) {
+        return new AstmMessageIndex().scan(astmMessage).contains('Q');
     }
 
-    private void processMessage(String data, Socket clientSocket) {
-        System.out.println("processMessage");
-        System.out.println("data = " + data);
-//        if (data.length() >= 3 && Character.isDigit(data.charAt(0)) && data.charAt(2) == '|') {
-        char recordType = data.charAt(0);//change the 1 -> 0 
-        
-        System.out.println("recordType index = " + recordType);
-        
-        if (hasResultRecord(data)) {
-            System.out.println("has Result Record");
-            boolean isAresultMessage = processResultMessage(data);
-            if (isAresultMessage) {
-                handleResultMessage(data);
-                return;
-            }
-        }else if(hasQueryRecord(data)){
-            
-        }else {
-            return;
-        }
-
-        switch (recordType) {
-            case 'H': // Header Record
-                patientDataBundle = new DataBundle();
-                receivingQuery = false;
-                receivingResults = false;
-                respondingQuery = false;
-                respondingResults = false;
-                needToSendEotForRecordForQuery = false;
-                needToSendOrderingRecordForQuery = false;
-                needToSendPatientRecordForQuery = false;
-                needToSendHeaderRecordForQuery = false;
-                logger.debug("Header Record Received: " + data);
-                break;
-            case 'R': // Result Record
-                logger.debug("Result Record Received: " + data);
-                respondingResults = true;
-                respondingQuery = false;
-                resultRecord = parseResultsRecord(data);
-                getPatientDataBundle().getResultsRecords().add(resultRecord);
-                logger.debug("Result Record Parsed: " + resultRecord);
-                break;
-            case 'Q': // Query Record
-                System.out.println("Query result received" + data);
-                receivingQuery = false;
-
-                respondingQuery = true;
-                needToSendHeaderRecordForQuery = true;
-                logger.debug("Query Record Received: " + data);
-                queryRecord = parseQueryRecord(data);
-                getPatientDataBundle().getQueryRecords().add(queryRecord);
-                logger.debug("Parsed the Query Record: " + queryRecord);
-                break;
-            case 'P': // Patient Record
-                logger.debug("Patient Record Received: " + data);
-                patientRecord = parsePatientRecord(data);
-                getPatientDataBundle().setPatientRecord(patientRecord);
-                logger.debug("Patient Record Parsed: " + patientRecord);
-                break;
-            case 'L': // Termination Record
-                logger.debug("Termination Record Received: " + data);
-                break;
-            case 'C': // Comment Record
-                logger.debug("Comment Record Received: " + data);
-
-                break;
-            case 'O': // Order Record or other type represented by 'O'
-                System.out.println("Order result received" + data);
-                logger.debug("Query Record Received: " + data);
-                String tmpSampleId = extractSampleIdFromOrderRecord(data);
-                System.out.println("tmpSampleId = " + tmpSampleId);
-                sampleId = tmpSampleId;
-                QueryRecord qr = new QueryRecord(0, sampleId, sampleId, "");
-                getPatientDataBundle().getQueryRecords().add(qr);
-//                    OrderRecord orderRecord = new OrderRecord(2, sampleId, null, sampleId, "", "");
-//                    getPatientDataBundle().getOrderRecords().add(orderRecord);
-                logger.debug("Parsed the Query Record: " + queryRecord);
-                break;
-            default: // Unknown Record
-                logger.debug("Unknown Record Received: " + data);
-                break;
-        }
-//        } else {
-//            logger.debug("Invalid Record Structure: " + data);
-//        }
+    public static PatientRecord parsePatientRecord(String patientSegment) {
+        return parsePatientRecord(new AstmFieldCursor().reset(patientSegment));
     }
 
-    public static PatientRecord parsePatientRecord(String patientSegment) {
-        String[] fields = patientSegment.split("\\|");
-        int frameNumber = Integer.parseInt(fields[0].replaceAll("[^0-9]", ""));
-        String patientId = fields[1];
-        String additionalId = fields[3]; // assuming index 2 is always empty as per your example
-        String patientName = fields[4];
-        String patientSecondName = fields[6]; // assuming this follows the same unused pattern
-        String patientSex = fields[7];
+    /**
+     * Maps the P record the cursor points at; only the fields that go into
+     * the record are copied out of the frame.
+     */
+    public static PatientRecord parsePatientRecord(AstmFieldCursor fields) {
+        int frameNumber = fields.frameNumber();
+        String patientId = fields.field(1);
+        String additionalId = fields.field(3); // assuming index 2 is always empty as per your example
+        String patientName = fields.field(4);
+        String patientSecondName = fields.field(6); // assuming this follows the same unused pattern
+        String patientSex = fields.field(7);
         String race = ""; // Not available in the segment
         String dob = ""; // Date of birth, not available in the segment
-        String patientAddress = fields[11];
-        String patientPhoneNumber = fields[14];
-        String attendingDoctor = fields[15];
+        String patientAddress = fields.field(11);
+        String patientPhoneNumber = fields.field(14);
+        String attendingDoctor = fields.field(15);
 
         // Return a new PatientRecord object using the extracted data
         return new PatientRecord(
@@ -1296,35 +1008,34 @@ public class MaglumiX3Server {
         );
     }
 
-    public static ResultsRecord parseResultsRecord(String resultSegment) {
-        // Split the segment into fields
-        String[] fields = resultSegment.split("\\|");
+    public static ResultsRecord parseResultsRecord(String resultSegment, String sampleId) {
+        return parseResultsRecord(new AstmFieldCursor().reset(resultSegment), sampleId);
+    }
 
-        // Ensure that the fields array has the expected length
-        if (fields.length < 6) {
-            logger.error("Insufficient fields in the result segment: {}", resultSegment);
+    public static ResultsRecord parseResultsRecord(AstmFieldCursor fields, String sampleId) {
+        // Ensure that the record has the expected number of fields
+        if (fields.fieldCount() < 6) {
+            logger.error("Insufficient fields in the result segment: {} fields", fields.fieldCount());
             return null; // or throw an exception
         }
 
-        // Extract the frame number by removing non-numeric characters
-        int frameNumber = Integer.parseInt(fields[0].replaceAll("[^0-9]", ""));
+        int frameNumber = fields.frameNumber();
         logger.debug("Frame number extracted: {}", frameNumber);
 
-        // Test code should be correctly identified assuming it's provided correctly in the fields[1]
-        String testCode = fields[2].split("\\^")[3]; // Extracting the correct part of the test code
+        // Test code is the fourth component of the universal test ID, as in ^^^TSH
+        String testCode = fields.component(2, 3);
         logger.debug("Test code extracted: {}", testCode);
 
         // Result value parsing assumes the result is in the fourth field
-        String resultValue = fields[3];
+        String resultValue = fields.field(3);
 
         // Units and other details
-        String resultUnits = fields[4];
+        String resultUnits = fields.field(4);
         logger.debug("Result units extracted: {}", resultUnits);
-        String resultDateTime = fields[12];
+        String resultDateTime = fields.field(12);
         logger.debug("Result date-time extracted: {}", resultDateTime);
-        String instrumentName = fields[13];
+        String instrumentName = fields.field(13);
         logger.debug("Instrument name extracted: {}", instrumentName);
-        System.out.println("sampleId = " + sampleId);
         // Return a new ResultsRecord object initialized with extracted values
         return new ResultsRecord(
                 frameNumber,
@@ -1339,29 +1050,27 @@ public class MaglumiX3Server {
     }
 
     public static OrderRecord parseOrderRecord(String orderSegment) {
+        return parseOrderRecord(new AstmFieldCursor().reset(orderSegment));
+    }
 
-        String[] fields = orderSegment.split("\\|");
-
-        // Extract frame number and remove non-numeric characters (<STX>, etc.)
-        int frameNumber = Integer.parseInt(fields[0].replaceAll("[^0-9]", ""));
+    public static OrderRecord parseOrderRecord(AstmFieldCursor fields) {
+        int frameNumber = fields.frameNumber();
 
         // Sample ID and associated data
-        String[] sampleDetails = fields[1].split("\\^");
-        String sampleId = sampleDetails[1]; // Adjust index based on your specific message structure
+        String sampleId = fields.component(1, 1); // Adjust index based on your specific message structure
 
-        // Extract test names, assuming they are separated by '^' inside a field like ^^^test1^test2
-        List<String> testNames = Arrays.stream(fields[2].split("\\^"))
-                .filter(s -> !s.isEmpty())
-                .collect(Collectors.toList());
+        // Test names are the components that are not empty, as in ^^^test1^test2
+        List<String> testNames = new ArrayList<>();
+        fields.nonEmptyComponents(2, testNames);
 
         // Specimen code
-        String specimenCode = fields[3];
+        String specimenCode = fields.field(3);
 
         // Order date and time
-        String orderDateTime = fields[4];
+        String orderDateTime = fields.field(4);
 
         // Test information
-        String testInformation = fields[6]; // Assuming test information is in the 7th segment
+        String testInformation = fields.field(6); // Assuming test information is in the 7th segment
 
         // Return a new OrderRecord object using the extracted data
         return new OrderRecord(
@@ -1375,50 +1084,46 @@ public class MaglumiX3Server {
     }
 
     public static String extractSampleIdFromQueryRecord(String astm2Message) {
-        // Step 1: Discard everything before "Q|"
-        int startIndex = astm2Message.indexOf("Q|");
+        return extractSampleIdFromQueryRecord(new AstmFieldCursor(), astm2Message);
+    }
+
+    /**
+     * Finds the Q record in the message and returns the second component of
+     * its starting range ID field, which is where the analyzer puts the
+     * sample ID.
+     */
+    public static String extractSampleIdFromQueryRecord(AstmFieldCursor fields, String astm2Message) {
+        // Discard everything before the Q record
+        int startIndex = astm2Message.indexOf("Q" + fields.getFieldDelimiter());
         if (startIndex == -1) {
             return null; // "Q|" not found in the message
         }
-        String postQ = astm2Message.substring(startIndex);
-
-        // Step 2: Get the string between the second and third "|"
-        String[] fields = postQ.split("\\|");
-        if (fields.length < 3) {
-            return null; // Not enough fields
-        }
-        String secondField = fields[2]; // Get the field after the second "|"
-
-        // Step 3: Get the string between the first and second "^"
-        String[] sampleDetails = secondField.split("\\^");
-        if (sampleDetails.length < 2) {
+        fields.reset(astm2Message, startIndex, astm2Message.length());
+        if (!fields.hasComponent(2, 1)) {
             return null; // Not enough data within the field
         }
-        return sampleDetails[1]; // This should be the sample ID
+        return fields.component(2, 1); // This should be the sample ID
     }
 
     public static String extractSampleIdFromOrderRecord(String astm2Message) {
-        // Split the message by the '|' delimiter
-        String[] fields = astm2Message.split("\\|");
-
-        // Assuming the sample ID is in the third field (index 2)
-        if (fields.length > 2) {
-            // Extract the sample ID field (third field)
-            String tmpSampleId = fields[2];
+        return extractSampleIdFromOrderRecord(new AstmFieldCursor().reset(astm2Message));
+    }
 
-            // Split the tmpSampleId by '^' and return the first part
-            String[] sampleIdParts = tmpSampleId.split("\\^");
-            return sampleIdParts[0]; // Return only the part before the first '^'
+    public static String extractSampleIdFromOrderRecord(AstmFieldCursor fields) {
+        // The sample ID is the first component of the third field (index 2)
+        if (fields.fieldCount() > 2) {
+            return fields.component(2, 0);
         } else {
             return null; // or throw an exception if you prefer
         }
     }
 
     public static QueryRecord parseQueryRecord(String querySegment) {
-        System.out.println("querySegment = " + querySegment);
-        String tmpSampleId = extractSampleIdFromQueryRecord(querySegment);
-        System.out.println("tmpSampleId = " + tmpSampleId);
-        sampleId = tmpSampleId;
+        return parseQueryRecord(new AstmFieldCursor(), querySegment);
+    }
+
+    public static QueryRecord parseQueryRecord(AstmFieldCursor fields, String querySegment) {
+        String tmpSampleId = extractSampleIdFromQueryRecord(fields, querySegment);
         System.out.println("Sample ID: " + tmpSampleId); // Debugging
         return new QueryRecord(
                 0,
@@ -1428,18 +1133,7 @@ public class MaglumiX3Server {
         );
     }
 
-    public DataBundle getPatientDataBundle() {
-        if (patientDataBundle == null) {
-            patientDataBundle = new DataBundle();
-        }
-        return patientDataBundle;
-    }
-
-    public void setPatientDataBundle(DataBundle patientDataBundle) {
-        this.patientDataBundle = patientDataBundle;
-    }
-
-    private boolean processResultMessage(String data) {
+    boolean processResultMessage(String data) {
         System.out.println("data = " + data);
         return true;
     }
@@ -0,0 +1,102 @@
+package org.carecode.mw.lims.mw.MaglumiX3;
+
+import java.io.IOException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Cuts a byte stream into HL7 messages framed with MLLP,
+ * {@code <VT> message <FS><CR>}.
+ *
+ * Bytes can arrive in chunks of any size; the message is collected in one
+ * buffer that is reused for every message on the connection and only grows
+ * when a message is larger than any before it. Bytes outside a block are
+ * dropped, and so is a message larger than {@link #MAX_MESSAGE_SIZE}.
+ */
+public class MllpFrameDecoder {
+
+    private static final Logger logger = LogManager.getLogger(MllpFrameDecoder.class);
+
+    public static final byte START_BLOCK = 0x0B;
+    public static final byte END_BLOCK = 0x1C;
+    public static final byte CARRIAGE_RETURN = 0x0D;
+
+    static final int MAX_MESSAGE_SIZE = 1024 * 1024;
+
+    public interface Listener {
+
+        /**
+         * A complete message, without its framing. The array is reused once
+         * the call returns.
+         */
+        void onMessage(byte[] message, int length) throws IOException;
+    }
+
+    private final Listener listener;
+    private byte[] buffer = new byte[8192];
+    private int length;
+    private boolean inBlock;
+    private boolean endOfBlock;
+    private boolean oversized;
+
+    public MllpFrameDecoder(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void decode(byte[] data, int offset, int count) throws IOException {
+        for (int i = offset; i < offset + count; i++) {
+            byte b = data[i];
+            if (!inBlock) {
+                if (b == START_BLOCK) {
+                    startBlock();
+                }
+                continue;
+            }
+            if (endOfBlock) {
+                endOfBlock = false;
+                if (b == CARRIAGE_RETURN) {
+                    inBlock = false;
+                    if (oversized) {
+                        logger.error("Dropped an HL7 message longer than " + MAX_MESSAGE_SIZE + " bytes");
+                    } else {
+                        listener.onMessage(buffer, length);
+                    }
+                    continue;
+                }
+                // a lone FS is message content
+                append(END_BLOCK);
+            }
+            if (b == END_BLOCK) {
+                endOfBlock = true;
+            } else if (b == START_BLOCK) {
+                logger.warn("New MLLP block before the end of the previous one, dropping " + length + " bytes");
+                startBlock();
+            } else {
+                append(b);
+            }
+        }
+    }
+
+    private void startBlock() {
+        inBlock = true;
+        endOfBlock = false;
+        oversized = false;
+        length = 0;
+    }
+
+    private void append(byte b) {
+        if (oversized) {
+            return;
+        }
+        if (length == buffer.length) {
+            if (length >= MAX_MESSAGE_SIZE) {
+                oversized = true;
+                return;
+            }
+            byte[] grown = new byte[Math.min(buffer.length * 2, MAX_MESSAGE_SIZE)];
+            System.arraycopy(buffer, 0, grown, 0, length);
+            buffer = grown;
+        }
+        buffer[length++] = b;
+    }
+}
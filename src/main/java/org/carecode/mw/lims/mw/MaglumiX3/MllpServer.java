@@ -0,0 +1,445 @@
+package org.carecode.mw.lims.mw.MaglumiX3;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * HL7 listener for analyzers that send {@code OUL^R22} results over MLLP
+ * instead of speaking ASTM.
+ *
+ * Every connection gets a thread that reads into a pooled buffer and feeds a
+ * {@link MllpFrameDecoder}. As soon as a message is complete it is written to
+ * the {@link Hl7Inbox} and a commit ACK ({@code MSA|CA}) is written back; the
+ * ACK is assembled from byte templates and the MSH fields of the message,
+ * without parsing it. The message itself is then handed to a pool of
+ * {@code hl7ProcessorThreads} threads, so the analyzer never waits for the
+ * parse or the LIS. A message that does not start with an MSH segment, or
+ * that could not be stored, gets a commit reject ({@code MSA|CR}), and one
+ * that arrives while the result backlog is full under the {@code NAK} policy
+ * a commit error ({@code MSA|CE}). Host queries are not answered over HL7: a
+ * {@code QRY} message gets an application reject ({@code MSA|AR}) at once,
+ * so the analyzer does not wait for an order response that never comes.
+ */
+public class MllpServer {
+
+    private static final Logger logger = LogManager.getLogger(MllpServer.class);
+
+    private static final int MAX_CONCURRENT_SESSIONS = 32;
+    private static final String INBOX_DIRECTORY = "hl7-inbox";
+    private static final long MIN_RETRY_MILLIS = 1000;
+    private static final long MAX_RETRY_MILLIS = 60000;
+
+    private static final byte[] MSH = "MSH".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ACK_TYPE = "ACK".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] MSA = "MSA".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] COMMIT_ACCEPT = "CA".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] COMMIT_REJECT = "CR".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] COMMIT_ERROR = "CE".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] APPLICATION_REJECT = "AR".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] QUERY_TYPE = "QRY".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] QUERY_NOT_SUPPORTED = "Host queries are not supported over HL7".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] DEFAULT_ENCODING = "|^~\\&".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] REJECT_PROCESSING_AND_VERSION = "|P|2.5".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] UNKNOWN_CONTROL_ID = "|UNKNOWN|Message does not start with an MSH segment".getBytes(StandardCharsets.US_ASCII);
+    private static final AtomicLong ACK_CONTROL_IDS = new AtomicLong(System.currentTimeMillis());
+
+    private final MaglumiX3Server server;
+    private ServerSocket serverSocket;
+    private ExecutorService sessionExecutor;
+    private ExecutorService processors;
+    private Hl7Inbox inbox;
+
+    public MllpServer(MaglumiX3Server server) {
+        this.server = server;
+    }
+
+    public void start(int port) {
+        try {
+            startProcessors();
+            sessionExecutor = Executors.newFixedThreadPool(MAX_CONCURRENT_SESSIONS, new NamedThreadFactory("mllp-session-"));
+            serverSocket = new ServerSocket(port);
+            logger.info("MLLP server started on port " + port);
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket clientSocket = serverSocket.accept();
+                    clientSocket.setKeepAlive(true);
+                    clientSocket.setTcpNoDelay(true);
+                    logger.info("New HL7 client connected: " + clientSocket.getInetAddress().getHostAddress());
+                    sessionExecutor.execute(new Connection(clientSocket));
+                } catch (IOException e) {
+                    if (serverSocket.isClosed()) {
+                        break;
+                    }
+                    logger.error("Error handling client connection", e);
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Error starting MLLP server on port " + port, e);
+        } finally {
+            stop();
+        }
+    }
+
+    /**
+     * The session for a connection made elsewhere, as by an
+     * {@link AnalyzerConnector} in client mode. It runs until the connection
+     * closes.
+     */
+    public Runnable newConnection(Socket socket) {
+        startProcessors();
+        return new Connection(socket);
+    }
+
+    /**
+     * Starts the processor threads the first time, and has them process the
+     * messages a crash left in the inbox.
+     */
+    private synchronized void startProcessors() {
+        if (processors != null) {
+            return;
+        }
+        Hl7ParsingService.getInstance();
+        int processorThreads = (int) SettingsLoader.getPerformanceSetting("hl7ProcessorThreads", 2);
+        processors = Executors.newFixedThreadPool(processorThreads, new NamedThreadFactory("hl7-processor-"));
+        try {
+            inbox = new Hl7Inbox(Paths.get(INBOX_DIRECTORY));
+            List<Path> pending = inbox.pending();
+            if (!pending.isEmpty()) {
+                logger.info("Processing " + pending.size() + " HL7 messages received before the last shutdown");
+            }
+            for (Path file : pending) {
+                processors.execute(() -> {
+                    try {
+                        process(file, inbox.read(file), ResultDeduplicator.analyzerSource(null), MIN_RETRY_MILLIS);
+                    } catch (IOException e) {
+                        logger.error("Could not read " + file, e);
+                    }
+                });
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot open the HL7 inbox in " + INBOX_DIRECTORY, e);
+        }
+    }
+
+    /**
+     * Processes a stored message and removes it from the inbox. When its
+     * results could not be queued the message is processed again after
+     * {@code retryMillis}, and the pause doubles up to a minute; the analyzer
+     * already has its ACK and will not send it again.
+     */
+    private void process(Path file, String message, String source, long retryMillis) {
+        if (server.processIndividualHL7Message(message, source)) {
+            inbox.remove(file);
+            return;
+        }
+        logger.error("Results of HL7 message " + file.getFileName() + " could not be queued, trying again in " + retryMillis + " ms");
+        long nextRetryMillis = Math.min(retryMillis * 2, MAX_RETRY_MILLIS);
+        HashedTimerWheel.shared().schedule(() -> {
+            try {
+                processors.execute(() -> process(file, message, source, nextRetryMillis));
+            } catch (RejectedExecutionException e) {
+                logger.warn("Shutting down, HL7 message " + file.getFileName() + " stays in " + INBOX_DIRECTORY + " for the next start");
+            }
+        }, retryMillis);
+    }
+
+    public void stop() {
+        try {
+            if (serverSocket != null && !serverSocket.isClosed()) {
+                serverSocket.close();
+                logger.info("MLLP server stopped.");
+            }
+        } catch (IOException e) {
+            logger.error("Error stopping MLLP server", e);
+        }
+        if (sessionExecutor != null) {
+            sessionExecutor.shutdownNow();
+        }
+        if (processors != null) {
+            processors.shutdown();
+        }
+    }
+
+    private class Connection implements Runnable, MllpFrameDecoder.Listener {
+
+        private final Socket socket;
+        private final String remoteAddress;
+        private final String source;
+        private final MllpFrameDecoder decoder = new MllpFrameDecoder(this);
+        private final ByteArrayOutputStream ack = new ByteArrayOutputStream(256);
+        // MSH-1 is at index 3; fieldEnds[n] is where MSH-(n + 2) ends
+        private final int[] fieldEnds = new int[11];
+        private final SimpleDateFormat timestampFormat = new SimpleDateFormat("yyyyMMddHHmmss");
+        private long timestampSecond = -1;
+        private byte[] timestamp;
+        private OutputStream out;
+
+        Connection(Socket socket) {
+            this.socket = socket;
+            this.remoteAddress = socket.getInetAddress().getHostAddress();
+            this.source = ResultDeduplicator.analyzerSource(remoteAddress);
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer readBuffer = ByteBufferPool.READ_BUFFERS.acquire();
+            try (Socket s = socket) {
+                InputStream in = s.getInputStream();
+                out = s.getOutputStream();
+                byte[] data = readBuffer.array();
+                int count;
+                while ((count = in.read(data)) != -1) {
+                    decoder.decode(data, 0, count);
+                }
+                logger.debug("Connection closed by analyzer " + remoteAddress);
+            } catch (IOException e) {
+                logger.error("Error during HL7 communication with " + remoteAddress, e);
+            } finally {
+                ByteBufferPool.READ_BUFFERS.release(readBuffer);
+                logger.info("HL7 session ended for " + remoteAddress);
+            }
+        }
+
+        @Override
+        public void onMessage(byte[] message, int length) throws IOException {
+            if (!indexHeader(message, length)) {
+                writeReject();
+                ack.writeTo(out);
+                out.flush();
+                logger.warn("Rejected an HL7 message without MSH segment from " + remoteAddress);
+                return;
+            }
+            if (isQuery(message)) {
+                writeAck(message, APPLICATION_REJECT, QUERY_NOT_SUPPORTED);
+                ack.writeTo(out);
+                out.flush();
+                logger.warn("Rejected an HL7 host query from " + remoteAddress + ", queries are only answered over ASTM");
+                return;
+            }
+            if (!ResultUploadQueue.getInstance().isAcceptingTransfers()) {
+                // commit error: the analyzer keeps the message and sends it again later
+                writeAck(message, COMMIT_ERROR);
+                ack.writeTo(out);
+                out.flush();
+                logger.warn("Result backlog full, refused an HL7 message from " + remoteAddress);
+                return;
+            }
+            // the analyzer may forget the message once it has the ACK
+            Path stored;
+            try {
+                stored = inbox.store(message, length);
+            } catch (IOException e) {
+                logger.error("Could not store an HL7 message from " + remoteAddress + ", rejecting it", e);
+                writeAck(message, COMMIT_REJECT);
+                ack.writeTo(out);
+                out.flush();
+                return;
+            }
+            writeAck(message, COMMIT_ACCEPT);
+            ack.writeTo(out);
+            out.flush();
+            String hl7Message = new String(message, 0, length, StandardCharsets.ISO_8859_1);
+            processors.execute(() -> process(stored, hl7Message, source, MIN_RETRY_MILLIS));
+        }
+
+        /**
+         * Finds where the MSH fields end, up to MSH-12.
+         *
+         * @return false when the message does not start with an MSH segment
+         */
+        private boolean indexHeader(byte[] message, int length) {
+            if (length < 8 || message[0] != 'M' || message[1] != 'S' || message[2] != 'H') {
+                return false;
+            }
+            byte fieldSeparator = message[3];
+            int field = 0;
+            int i = 4;
+            for (; i < length && field < fieldEnds.length; i++) {
+                if (message[i] == '\r' || message[i] == '\n') {
+                    break;
+                }
+                if (message[i] == fieldSeparator) {
+                    fieldEnds[field++] = i;
+                }
+            }
+            // the last field ends with the segment, and fields the analyzer left off are empty
+            while (field < fieldEnds.length) {
+                fieldEnds[field++] = i;
+            }
+            return true;
+        }
+
+        /**
+         * Whether MSH-9 names a query message.
+         */
+        private boolean isQuery(byte[] message) {
+            int start = fieldStart(9);
+            if (fieldEnd(9) - start < QUERY_TYPE.length) {
+                return false;
+            }
+            for (int i = 0; i < QUERY_TYPE.length; i++) {
+                if (message[start + i] != QUERY_TYPE[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void writeAck(byte[] message, byte[] acknowledgmentCode) {
+            writeAck(message, acknowledgmentCode, null);
+        }
+
+        /**
+         * ACK with the sending and receiving application and facility of
+         * the message swapped, its trigger event, control ID, processing ID
+         * and version.
+         *
+         * @param text the text message of MSA-3, or null
+         */
+        private void writeAck(byte[] message, byte[] acknowledgmentCode, byte[] text) {
+            ack.reset();
+            ack.write(MllpFrameDecoder.START_BLOCK);
+            ack.write(MSH, 0, MSH.length);
+            byte fieldSeparator = message[3];
+            byte componentSeparator = message[4];
+            ack.write(message, 3, fieldEnds[0] - 3);
+            copyField(message, 5, fieldSeparator);
+            copyField(message, 6, fieldSeparator);
+            copyField(message, 3, fieldSeparator);
+            copyField(message, 4, fieldSeparator);
+            ack.write(fieldSeparator);
+            byte[] now = timestamp();
+            ack.write(now, 0, now.length);
+            ack.write(fieldSeparator);
+            ack.write(fieldSeparator);
+            ack.write(ACK_TYPE, 0, ACK_TYPE.length);
+            int trigger = indexOf(message, componentSeparator, fieldStart(9), fieldEnd(9));
+            if (trigger >= 0) {
+                int triggerEnd = indexOf(message, componentSeparator, trigger + 1, fieldEnd(9));
+                ack.write(message, trigger, (triggerEnd < 0 ? fieldEnd(9) : triggerEnd) - trigger);
+                ack.write(componentSeparator);
+                ack.write(ACK_TYPE, 0, ACK_TYPE.length);
+            }
+            copyField(message, 10, fieldSeparator);
+            copyField(message, 11, fieldSeparator);
+            copyField(message, 12, fieldSeparator);
+            ack.write(MllpFrameDecoder.CARRIAGE_RETURN);
+            ack.write(MSA, 0, MSA.length);
+            ack.write(fieldSeparator);
+            ack.write(acknowledgmentCode, 0, acknowledgmentCode.length);
+            copyField(message, 10, fieldSeparator);
+            if (text != null) {
+                ack.write(fieldSeparator);
+                ack.write(text, 0, text.length);
+            }
+            endAck();
+        }
+
+        /**
+         * Commit reject for a message without MSH segment. Nothing of the
+         * message can be trusted, so the ACK has default delimiters, its own
+         * control ID and version.
+         */
+        private void writeReject() {
+            ack.reset();
+            ack.write(MllpFrameDecoder.START_BLOCK);
+            ack.write(MSH, 0, MSH.length);
+            ack.write(DEFAULT_ENCODING, 0, DEFAULT_ENCODING.length);
+            for (int field = 3; field <= 7; field++) {
+                ack.write('|');
+            }
+            byte[] now = timestamp();
+            ack.write(now, 0, now.length);
+            ack.write('|');
+            ack.write('|');
+            ack.write(ACK_TYPE, 0, ACK_TYPE.length);
+            ack.write('|');
+            byte[] controlId = Long.toString(ACK_CONTROL_IDS.incrementAndGet()).getBytes(StandardCharsets.US_ASCII);
+            ack.write(controlId, 0, controlId.length);
+            ack.write(REJECT_PROCESSING_AND_VERSION, 0, REJECT_PROCESSING_AND_VERSION.length);
+            ack.write(MllpFrameDecoder.CARRIAGE_RETURN);
+            ack.write(MSA, 0, MSA.length);
+            ack.write('|');
+            ack.write(COMMIT_REJECT, 0, COMMIT_REJECT.length);
+            ack.write(UNKNOWN_CONTROL_ID, 0, UNKNOWN_CONTROL_ID.length);
+            endAck();
+        }
+
+        private void endAck() {
+            ack.write(MllpFrameDecoder.CARRIAGE_RETURN);
+            ack.write(MllpFrameDecoder.END_BLOCK);
+            ack.write(MllpFrameDecoder.CARRIAGE_RETURN);
+        }
+
+        private void copyField(byte[] message, int field, byte fieldSeparator) {
+            ack.write(fieldSeparator);
+            int length = fieldEnd(field) - fieldStart(field);
+            if (length > 0) {
+                ack.write(message, fieldStart(field), length);
+            }
+        }
+
+        private int fieldStart(int field) {
+            return fieldEnds[field - 3] + 1;
+        }
+
+        private int fieldEnd(int field) {
+            int end = fieldEnds[field - 2];
+            return Math.max(end, fieldStart(field));
+        }
+
+        private byte[] timestamp() {
+            long second = System.currentTimeMillis() / 1000;
+            if (second != timestampSecond) {
+                timestampSecond = second;
+                timestamp = timestampFormat.format(new Date(second * 1000)).getBytes(StandardCharsets.US_ASCII);
+            }
+            return timestamp;
+        }
+    }
+
+    private static int indexOf(byte[] data, byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (data[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+
+        private final String prefix;
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, prefix + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package org.carecode.mw.lims.mw.MaglumiX3;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.carecode.lims.libraries.DataBundle;
+import org.carecode.lims.libraries.QueryRecord;
+
+/**
+ * Read-through cache of the test orders the LIS returned for a sample.
+ *
+ * Reruns, dilutions and a second analyzer query the same tube again; those
+ * queries are answered from memory instead of another LIS round trip. An entry
+ * lives for {@code orderCacheTtlMillis}, the least recently used entry is
+ * evicted once {@code orderCacheSize} samples are cached, and the entry of a
+ * sample is dropped as soon as results for it have been sent to the LIS.
+ * Empty answers are not cached, so orders registered later are still found.
+ */
+public class OrderCache {
+
+    private static final Logger logger = LogManager.getLogger(OrderCache.class);
+
+    private static OrderCache instance;
+
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    // access ordered, so the eldest entry is the least recently used one
+    private final LinkedHashMap<String, CachedOrders> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final ExecutorService lookups;
+    private final SingleFlight<String, DataBundle> pullsInFlight = new SingleFlight<>();
+
+    public static synchronized OrderCache getInstance() {
+        if (instance == null) {
+            int maxEntries = (int) SettingsLoader.getPerformanceSetting("orderCacheSize", 1000);
+            long ttlMillis = SettingsLoader.getPerformanceSetting("orderCacheTtlMillis", 60000);
+            int lookupThreads = (int) SettingsLoader.getPerformanceSetting("hostQueryThreads", 4);
+            instance = new OrderCache(maxEntries, ttlMillis, lookupThreads);
+        }
+        return instance;
+    }
+
+    OrderCache(int maxEntries, long ttlMillis, int lookupThreads) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.lookups = Executors.newFixedThreadPool(lookupThreads, runnable -> {
+            Thread thread = new Thread(runnable, "host-query-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Like {@link #getOrders(QueryRecord)}, but the LIS is asked on a lookup
+     * thread. A lookup the caller stops waiting for still completes and fills
+     * the cache. Concurrent queries for the same sample share one LIS request.
+     */
+    public CompletableFuture<DataBundle> getOrdersAsync(QueryRecord query) {
+        String sampleId = query.getSampleId();
+        CachedOrders cached = sampleId == null ? null : lookup(sampleId);
+        if (cached != null) {
+            hits.incrementAndGet();
+            return CompletableFuture.completedFuture(cached.orders);
+        }
+        if (sampleId == null) {
+            return CompletableFuture.supplyAsync(() -> getOrders(query), lookups);
+        }
+        return pullsInFlight.execute(sampleId, () -> CompletableFuture.supplyAsync(() -> getOrders(query), lookups));
+    }
+
+    /**
+     * Returns the orders for the queried sample, asking the LIS only when they
+     * are not cached or have expired.
+     */
+    public DataBundle getOrders(QueryRecord query) {
+        String sampleId = query.getSampleId();
+        if (sampleId == null || maxEntries <= 0) {
+            return LISCommunicator.pullTestOrdersForSampleRequests(query);
+        }
+        CachedOrders cached = lookup(sampleId);
+        if (cached != null) {
+            hits.incrementAndGet();
+            logger.debug("Orders for sample " + sampleId + " served from cache");
+            return cached.orders;
+        }
+        misses.incrementAndGet();
+        DataBundle orders = LISCommunicator.pullTestOrdersForSampleRequests(query);
+        if (orders != null && !orders.getOrderRecords().isEmpty()) {
+            put(sampleId, orders);
+        }
+        logger.debug("Order cache: " + hits.get() + " hits, " + misses.get() + " misses, "
+                + pullsInFlight.getCoalesced() + " queries joined a running request");
+        return orders;
+    }
+
+    /**
+     * Forgets the orders of a sample, once its results have gone to the LIS.
+     */
+    public synchronized void invalidate(String sampleId) {
+        if (sampleId != null) {
+            entries.remove(sampleId);
+        }
+    }
+
+    public synchronized void invalidateAll(Collection<String> sampleIds) {
+        for (String sampleId : sampleIds) {
+            invalidate(sampleId);
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private synchronized CachedOrders lookup(String sampleId) {
+        CachedOrders cached = entries.get(sampleId);
+        if (cached != null && System.currentTimeMillis() - cached.loadedAt > ttlMillis) {
+            entries.remove(sampleId);
+            return null;
+        }
+        return cached;
+    }
+
+    private synchronized void put(String sampleId, DataBundle orders) {
+        entries.put(sampleId, new CachedOrders(orders));
+        Iterator<CachedOrders> eldest = entries.values().iterator();
+        while (entries.size() > maxEntries) {
+            eldest.next();
+            eldest.remove();
+        }
+    }
+
+    private static class CachedOrders {
+
+        private final DataBundle orders;
+        private final long loadedAt = System.currentTimeMillis();
+
+        private CachedOrders(DataBundle orders) {
+            this.orders = orders;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package org.carecode.mw.lims.mw.MaglumiX3;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.carecode.lims.libraries.MiddlewareSettings;
+import org.carecode.lims.libraries.ResultsRecord;
+
+/**
+ * Remembers the results sent to the LIS recently, so that a result the
+ * analyzer transmitted twice is only uploaded once.
+ *
+ * A result is identified by the analyzer it came from, sample ID, test code,
+ * result date and time and value. The analyzer is named by its
+ * {@link #analyzerSource(String) source}, which stays the same when it
+ * reconnects to send a result again. A result without a sample ID or
+ * result time has no such identity, as two patients can share the rest, and
+ * is never treated as a duplicate. Keys are kept for
+ * {@code resultDedupWindowMillis} in an insertion ordered map bounded to
+ * {@code resultDedupSize} entries; the oldest keys go first, whether they
+ * have expired or the map is full.
+ */
+public class ResultDeduplicator {
+
+    private static final char SEPARATOR = '\u001F';
+
+    private static ResultDeduplicator instance;
+
+    private final int maxEntries;
+    private final long windowMillis;
+    private final LinkedHashMap<String, Long> seen = new LinkedHashMap<>();
+    private final AtomicLong suppressed = new AtomicLong();
+
+    public static synchronized ResultDeduplicator getInstance() {
+        if (instance == null) {
+            int maxEntries = (int) SettingsLoader.getPerformanceSetting("resultDedupSize", 10000);
+            long windowMillis = SettingsLoader.getPerformanceSetting("resultDedupWindowMillis", 60 * 60 * 1000);
+            instance = new ResultDeduplicator(maxEntries, windowMillis);
+        }
+        return instance;
+    }
+
+    ResultDeduplicator(int maxEntries, long windowMillis) {
+        this.maxEntries = maxEntries;
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * The source of the results of an analyzer: its configured name, or its
+     * address when no name is configured.
+     */
+    public static String analyzerSource(String remoteAddress) {
+        MiddlewareSettings settings = SettingsLoader.getSettings();
+        if (settings != null && settings.getAnalyzerDetails() != null && !isBlank(settings.getAnalyzerDetails().getAnalyzerName())) {
+            return settings.getAnalyzerDetails().getAnalyzerName();
+        }
+        return remoteAddress;
+    }
+
+    /**
+     * @param source the analyzer the result came from
+     * @return the key of the result, or null when it cannot be told apart
+     * from a result of another sample and must always be sent
+     */
+    public static String key(ResultsRecord result, String source) {
+        if (isBlank(source) || isBlank(result.getSampleId()) || isBlank(result.getResultDateTime())) {
+            return null;
+        }
+        return source + SEPARATOR + result.getSampleId() + SEPARATOR + result.getTestCode() + SEPARATOR
+                + result.getResultDateTime() + SEPARATOR + result.getResultValue();
+    }
+
+    /**
+     * @return true when the result with this key was sent within the window,
+     * in which case it is counted as suppressed
+     */
+    public synchronized boolean wasSent(String key) {
+        expire(System.currentTimeMillis());
+        if (!seen.containsKey(key)) {
+            return false;
+        }
+        suppressed.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Records a result the LIS has taken.
+     */
+    public synchronized void markSent(String key) {
+        long now = System.currentTimeMillis();
+        expire(now);
+        seen.remove(key);
+        seen.put(key, now);
+        if (seen.size() > maxEntries) {
+            Iterator<String> oldest = seen.keySet().iterator();
+            oldest.next();
+            oldest.remove();
+        }
+    }
+
+    public long getSuppressed() {
+        return suppressed.get();
+    }
+
+    private void expire(long now) {
+        Iterator<Map.Entry<String, Long>> oldest = seen.entrySet().iterator();
+        while (oldest.hasNext() && now - oldest.next().getValue() > windowMillis) {
+            oldest.remove();
+        }
+    }
+
+    private static boolean isBlank(String value) {
+        return value == null || value.trim().isEmpty();
+    }
+}
@@ -0,0 +1,475 @@
+package org.carecode.mw.lims.mw.MaglumiX3;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.carecode.lims.libraries.DataBundle;
+
+/**
+ * Append-only write-ahead journal of the result bundles that have not reached
+ * the LIS yet.
+ *
+ * Bundles are appended to memory-mapped segment files as
+ * {@code length, CRC32, JSON}, together with the session or connection they
+ * came from. {@link #append(DataBundle, String)} returns only once
+ * the entry is on disk, but the fsync is done by a single flusher thread that
+ * forces everything appended since its last pass at once, so sessions that
+ * append at the same time share one disk flush.
+ *
+ * The entries are read back in order with {@link #next()} and
+ * {@link #acknowledge(long) acknowledged} once the LIS has them. The position
+ * of the oldest unacknowledged entry is saved as the checkpoint, replay starts
+ * there after a restart, and segments wholly before it are deleted.
+ */
+public class ResultJournal {
+
+    private static final Logger logger = LogManager.getLogger(ResultJournal.class);
+
+    private static final int HEADER_LENGTH = 8; // length, CRC32
+    private static final int END_OF_SEGMENT = -1;
+    private static final String SEGMENT_SUFFIX = ".segment";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final String DEAD_LETTER_FILE = "dead-letter.jsonl";
+    private static final long CHECKPOINT_INTERVAL_MILLIS = 1000;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int cachedEntries;
+    private final Gson gson = LimsJsonCodecs.create();
+    // guarded by this
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private Segment tail;
+    private volatile long writePosition;
+
+    private final Object flushLock = new Object();
+    private final Object deadLetterLock = new Object();
+    private volatile long durablePosition;
+
+    private volatile long readPosition;
+    private final ConcurrentSkipListSet<Long> unacknowledged = new ConcurrentSkipListSet<>();
+    private final Map<Long, Entry> unread = new ConcurrentHashMap<>();
+    private final AtomicInteger backlog = new AtomicInteger();
+    private long savedCheckpoint;
+
+    /**
+     * Opens the journal in the directory, recovering the entries that were
+     * not acknowledged before the last shutdown.
+     *
+     * @param cachedEntries how many appended bundles are kept in memory so
+     * that {@link #next()} need not decode them from disk again
+     */
+    public ResultJournal(Path directory, int segmentSize, int cachedEntries) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.cachedEntries = cachedEntries;
+        recover();
+        Thread flusher = new Thread(this::flush, "result-journal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Number of entries appended but not acknowledged.
+     */
+    public int backlog() {
+        return backlog.get();
+    }
+
+    /**
+     * Writes the bundle to the journal and waits until it is on disk.
+     *
+     * @param source the analyzer the bundle came from, or null
+     * @return the position of the entry
+     */
+    public long append(DataBundle bundle, String source) throws IOException, InterruptedException {
+        // the settings, credentials included, are added again on upload
+        bundle.setMiddlewareSettings(null);
+        byte[] data = gson.toJson(new StoredEntry(source, bundle)).getBytes(StandardCharsets.UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        int length = HEADER_LENGTH + data.length;
+        long position;
+        synchronized (this) {
+            if (tail.base + tail.size - writePosition < length) {
+                roll(length);
+            }
+            ByteBuffer out = tail.buffer.duplicate();
+            out.position((int) (writePosition - tail.base));
+            out.putInt(data.length).putInt((int) crc.getValue()).put(data);
+            position = writePosition;
+            if (unread.size() < cachedEntries) {
+                unread.put(position, new Entry(position, bundle, source));
+            }
+            backlog.incrementAndGet();
+            writePosition = position + length;
+            notifyAll();
+        }
+        synchronized (flushLock) {
+            flushLock.notifyAll();
+            while (durablePosition < position + length) {
+                flushLock.wait();
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Waits for the entry after the one returned last. Meant for a single
+     * replay thread.
+     */
+    public Entry next() throws InterruptedException {
+        while (true) {
+            Segment segment;
+            synchronized (this) {
+                while (readPosition >= writePosition) {
+                    wait();
+                }
+                segment = segments.floorEntry(readPosition).getValue();
+            }
+            long position = readPosition;
+            int offset = (int) (position - segment.base);
+            if (segment.size - offset < HEADER_LENGTH || segment.buffer.getInt(offset) == END_OF_SEGMENT) {
+                readPosition = segment.base + segment.size;
+                continue;
+            }
+            int length = segment.buffer.getInt(offset);
+            Entry entry = unread.remove(position);
+            if (entry == null) {
+                entry = decode(segment, offset, length);
+            }
+            unacknowledged.add(position);
+            readPosition = position + HEADER_LENGTH + length;
+            if (entry != null) {
+                return entry;
+            }
+            acknowledge(position);
+        }
+    }
+
+    /**
+     * Marks the entry as delivered, so it is not replayed after a restart.
+     */
+    public void acknowledge(long position) {
+        if (unacknowledged.remove(position)) {
+            backlog.decrementAndGet();
+            synchronized (backlog) {
+                backlog.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Moves an entry the LIS will never take to the dead-letter file and
+     * acknowledges it. The file gets one JSON line per entry, with the time
+     * and the reason, and is only ever appended to; it is up to the operator
+     * to send its entries again or discard them.
+     */
+    public void deadLetter(Entry entry, String reason) throws IOException {
+        DeadLetter letter = new DeadLetter(Instant.now().toString(), reason, entry.source, entry.bundle);
+        ByteBuffer line = ByteBuffer.wrap((gson.toJson(letter) + "\n").getBytes(StandardCharsets.UTF_8));
+        synchronized (deadLetterLock) {
+            try (FileChannel channel = FileChannel.open(getDeadLetterFile(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND)) {
+                while (line.hasRemaining()) {
+                    channel.write(line);
+                }
+                channel.force(true);
+            }
+        }
+        acknowledge(entry.position);
+    }
+
+    public Path getDeadLetterFile() {
+        return directory.resolve(DEAD_LETTER_FILE);
+    }
+
+    /**
+     * Waits until fewer than {@code limit} entries are waiting for the LIS.
+     */
+    public void awaitBacklogBelow(int limit) throws InterruptedException {
+        synchronized (backlog) {
+            while (backlog.get() >= limit) {
+                backlog.wait();
+            }
+        }
+    }
+
+    private Entry decode(Segment segment, int offset, int length) {
+        byte[] data = new byte[length];
+        ByteBuffer in = segment.buffer.duplicate();
+        in.position(offset + HEADER_LENGTH);
+        in.get(data);
+        long position = segment.base + offset;
+        try {
+            String json = new String(data, StandardCharsets.UTF_8);
+            StoredEntry stored = gson.fromJson(json, StoredEntry.class);
+            if (stored != null && stored.bundle != null) {
+                return new Entry(position, stored.bundle, stored.source);
+            }
+            // written before entries recorded their source
+            DataBundle bundle = gson.fromJson(json, DataBundle.class);
+            return bundle == null ? null : new Entry(position, bundle, null);
+        } catch (JsonParseException e) {
+            logger.error("Skipping unreadable journal entry at " + position, e);
+            return null;
+        }
+    }
+
+    private void roll(int length) throws IOException {
+        int offset = (int) (writePosition - tail.base);
+        if (tail.size - offset >= 4) {
+            tail.buffer.putInt(offset, END_OF_SEGMENT);
+        }
+        // entries before the roll must be on disk before later ones are
+        // reported durable
+        tail.buffer.force();
+        tail = openSegment(tail.base + tail.size, Math.max(segmentSize, length));
+        writePosition = tail.base;
+    }
+
+    private Segment openSegment(long base, int size) throws IOException {
+        Path file = directory.resolve(String.format("%020d%s", base, SEGMENT_SUFFIX));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            Segment segment = new Segment(base, file, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+            segments.put(base, segment);
+            return segment;
+        }
+    }
+
+    private void flush() {
+        long lastCheckpoint = System.currentTimeMillis();
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                synchronized (flushLock) {
+                    if (durablePosition >= writePosition) {
+                        flushLock.wait(CHECKPOINT_INTERVAL_MILLIS);
+                    }
+                }
+                long target;
+                Segment segment;
+                synchronized (this) {
+                    target = writePosition;
+                    segment = tail;
+                }
+                if (target > durablePosition) {
+                    segment.buffer.force();
+                    synchronized (flushLock) {
+                        durablePosition = target;
+                        flushLock.notifyAll();
+                    }
+                }
+                if (System.currentTimeMillis() - lastCheckpoint >= CHECKPOINT_INTERVAL_MILLIS) {
+                    lastCheckpoint = System.currentTimeMillis();
+                    checkpoint();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException | RuntimeException e) {
+                logger.error("Result journal flush failed", e);
+            }
+        }
+    }
+
+    private void checkpoint() throws IOException {
+        long position = readPosition;
+        Long oldest = unacknowledged.isEmpty() ? null : unacknowledged.first();
+        if (oldest != null) {
+            position = Math.min(position, oldest);
+        }
+        if (position == savedCheckpoint) {
+            return;
+        }
+        Path temporary = directory.resolve(CHECKPOINT_FILE + ".tmp");
+        Files.write(temporary, Long.toString(position).getBytes(StandardCharsets.US_ASCII));
+        Files.move(temporary, directory.resolve(CHECKPOINT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        savedCheckpoint = position;
+        compact(position);
+    }
+
+    /**
+     * Deletes the segments that end at or before the checkpoint. A segment
+     * that cannot be deleted yet, as on Windows while it is still mapped, is
+     * tried again at the next checkpoint.
+     */
+    private synchronized void compact(long checkpoint) {
+        Iterator<Segment> iterator = segments.values().iterator();
+        while (iterator.hasNext()) {
+            Segment segment = iterator.next();
+            if (segment == tail || segment.base + segment.size > checkpoint) {
+                return;
+            }
+            try {
+                Files.deleteIfExists(segment.file);
+                iterator.remove();
+                logger.debug("Deleted journal segment " + segment.file.getFileName());
+            } catch (IOException e) {
+                logger.debug("Could not delete journal segment " + segment.file.getFileName() + " yet");
+            }
+        }
+    }
+
+    private void recover() throws IOException {
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                long base = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                openSegment(base, (int) Files.size(file));
+            }
+        }
+        Path checkpointFile = directory.resolve(CHECKPOINT_FILE);
+        long checkpoint = segments.isEmpty() ? 0 : segments.firstKey();
+        if (Files.exists(checkpointFile)) {
+            checkpoint = Long.parseLong(new String(Files.readAllBytes(checkpointFile), StandardCharsets.US_ASCII).trim());
+        }
+        if (segments.isEmpty()) {
+            openSegment(checkpoint, segmentSize);
+        }
+
+        long position = Math.max(checkpoint, segments.firstKey());
+        for (Segment segment : segments.tailMap(segments.floorKey(position)).values()) {
+            tail = segment;
+            position = Math.max(position, segment.base);
+            position = scan(segment, position, segment == segments.lastEntry().getValue());
+        }
+        writePosition = position;
+        durablePosition = position;
+        readPosition = Math.max(checkpoint, segments.firstKey());
+        savedCheckpoint = readPosition;
+        compact(readPosition);
+        if (backlog.get() > 0) {
+            logger.info("Result journal holds " + backlog.get() + " results not yet sent to the LIS");
+        }
+    }
+
+    /**
+     * Counts the valid entries of a segment from the given position and
+     * returns where the next entry goes. A torn entry in the last segment marks
+     * the end of the journal.
+     */
+    private long scan(Segment segment, long position, boolean last) {
+        int offset = (int) (position - segment.base);
+        while (segment.size - offset >= HEADER_LENGTH) {
+            int length = segment.buffer.getInt(offset);
+            if (length == END_OF_SEGMENT) {
+                return segment.base + segment.size;
+            }
+            if (length <= 0 || length > segment.size - offset - HEADER_LENGTH || !checksumMatches(segment, offset, length)) {
+                break;
+            }
+            backlog.incrementAndGet();
+            offset += HEADER_LENGTH + length;
+        }
+        if (!last) {
+            logger.warn("Journal segment " + segment.file.getFileName() + " ends early at offset " + offset);
+            return segment.base + segment.size;
+        }
+        return segment.base + offset;
+    }
+
+    private static boolean checksumMatches(Segment segment, int offset, int length) {
+        ByteBuffer data = segment.buffer.duplicate();
+        data.limit(offset + HEADER_LENGTH + length).position(offset + HEADER_LENGTH);
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return (int) crc.getValue() == segment.buffer.getInt(offset + 4);
+    }
+
+    /**
+     * A journal entry handed out by {@link #next()}.
+     */
+    public static class Entry {
+
+        private final long position;
+        private final DataBundle bundle;
+        private final String source;
+
+        private Entry(long position, DataBundle bundle, String source) {
+            this.position = position;
+            this.bundle = bundle;
+            this.source = source;
+        }
+
+        public long getPosition() {
+            return position;
+        }
+
+        public DataBundle getBundle() {
+            return bundle;
+        }
+
+        /**
+         * @return the session or connection the bundle was received on, or
+         * null when it is not known
+         */
+        public String getSource() {
+            return source;
+        }
+    }
+
+    /**
+     * What is written to disk for an entry.
+     */
+    private static class StoredEntry {
+
+        private String source;
+        private DataBundle bundle;
+
+        private StoredEntry(String source, DataBundle bundle) {
+            this.source = source;
+            this.bundle = bundle;
+        }
+    }
+
+    /**
+     * A line of the dead-letter file.
+     */
+    private static class DeadLetter {
+
+        private String failedAt;
+        private String reason;
+        private String source;
+        private DataBundle bundle;
+
+        private DeadLetter(String failedAt, String reason, String source, DataBundle bundle) {
+            this.failedAt = failedAt;
+            this.reason = reason;
+            this.source = source;
+            this.bundle = bundle;
+        }
+    }
+
+    private static class Segment {
+
+        private final long base;
+        private final Path file;
+        private final MappedByteBuffer buffer;
+        private final int size;
+
+        private Segment(long base, Path file, MappedByteBuffer buffer) {
+            this.base = base;
+            this.file = file;
+            this.buffer = buffer;
+            this.size = buffer.capacity();
+        }
+    }
+}
@@ -0,0 +1,366 @@
+package org.carecode.mw.lims.mw.MaglumiX3;
+
+import com.google.gson.Gson;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.carecode.lims.libraries.DataBundle;
+import org.carecode.lims.libraries.PatientRecord;
+import org.carecode.lims.libraries.ResultsRecord;
+
+/**
+ * Hands parsed results from the analyzer sessions to a pool of uploader
+ * threads, so that a frame is acknowledged as soon as it is parsed and a slow
+ * LIS never holds up the analyzer.
+ *
+ * Every bundle is first written to the {@link ResultJournal}; the frame is
+ * only ACKed once it is on disk. A replay thread reads the journal in order
+ * and feeds the uploaders, and an entry is acknowledged in the journal only
+ * after the LIS has taken it. While the LIS is down or answers with a server
+ * error the uploaders keep retrying with a growing pause and the results wait
+ * in the journal, across restarts if need be. A bundle the LIS refuses
+ * outright, with a 4xx answer, would be refused again; it is moved to the
+ * dead-letter file of the journal instead, so it does not hold up the
+ * results behind it.
+ *
+ * What happens when {@code resultQueueCapacity} results are waiting is set
+ * with the {@code resultQueuePolicy} performance setting:
+ * <ul>
+ * <li>{@code BLOCK} (default) - the session waits until the backlog
+ * shrinks,</li>
+ * <li>{@code SPILL} - the bundle is accepted anyway and the backlog grows on
+ * disk,</li>
+ * <li>{@code NAK} - new transfers are refused, see
+ * {@link #isAcceptingTransfers()}, so the analyzer sends them again later.
+ * Results of a transfer that was already accepted are spilled to disk, as
+ * there is no longer a way to make the analyzer send them again.</li>
+ * </ul>
+ *
+ * Each uploader takes the bundles waiting in the queue, up to
+ * {@code resultBatchSize} results, waiting at most
+ * {@code resultBatchWindowMillis} for a batch to fill. The bundles of the same
+ * patient are merged into one {@code /test_results} request with that
+ * patient record, so a burst of results costs a handful of round trips
+ * instead of one per result.
+ */
+public class ResultUploadQueue {
+
+    private static final Logger logger = LogManager.getLogger(ResultUploadQueue.class);
+    private static final Gson gson = LimsJsonCodecs.create();
+
+    public enum OverflowPolicy {
+        BLOCK, SPILL, NAK
+    }
+
+    private static final String JOURNAL_DIRECTORY = "result-journal";
+    private static final long MIN_RETRY_MILLIS = 1000;
+    private static final long MAX_RETRY_MILLIS = 60000;
+
+    private static ResultUploadQueue instance;
+
+    private final ResultJournal journal;
+    private final BlockingQueue<ResultJournal.Entry> queue;
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final int batchSize;
+    private final long batchWindowNanos;
+    private final Function<DataBundle, LISCommunicator.PushResult> lis;
+
+    public static synchronized ResultUploadQueue getInstance() {
+        if (instance == null) {
+            int capacity = (int) SettingsLoader.getPerformanceSetting("resultQueueCapacity", 1000);
+            int uploaders = (int) SettingsLoader.getPerformanceSetting("resultUploaderThreads", 2);
+            OverflowPolicy policy = OverflowPolicy.valueOf(SettingsLoader.getPerformanceSetting("resultQueuePolicy", OverflowPolicy.BLOCK.name()));
+            int batchSize = (int) SettingsLoader.getPerformanceSetting("resultBatchSize", 200);
+            long batchWindowMillis = SettingsLoader.getPerformanceSetting("resultBatchWindowMillis", 250);
+            int segmentBytes = (int) SettingsLoader.getPerformanceSetting("resultJournalSegmentBytes", 16 * 1024 * 1024);
+            try {
+                ResultJournal journal = new ResultJournal(Paths.get(JOURNAL_DIRECTORY), segmentBytes, capacity);
+                instance = new ResultUploadQueue(journal, capacity, uploaders, policy, batchSize, batchWindowMillis);
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot open the result journal in " + JOURNAL_DIRECTORY, e);
+            }
+        }
+        return instance;
+    }
+
+    ResultUploadQueue(ResultJournal journal, int capacity, int uploaders, OverflowPolicy policy, int batchSize, long batchWindowMillis) {
+        this(journal, capacity, uploaders, policy, batchSize, batchWindowMillis, LISCommunicator::pushResults);
+    }
+
+    /**
+     * @param lis sends a bundle to the LIS
+     */
+    ResultUploadQueue(ResultJournal journal, int capacity, int uploaders, OverflowPolicy policy, int batchSize, long batchWindowMillis,
+            Function<DataBundle, LISCommunicator.PushResult> lis) {
+        this.journal = journal;
+        this.lis = lis;
+        this.capacity = capacity;
+        this.policy = policy;
+        this.batchSize = Math.max(1, batchSize);
+        this.batchWindowNanos = TimeUnit.MILLISECONDS.toNanos(batchWindowMillis);
+        this.queue = new ArrayBlockingQueue<>(this.batchSize * Math.max(1, uploaders));
+        Thread replayer = new Thread(this::replay, "result-journal-replayer");
+        replayer.setDaemon(true);
+        replayer.start();
+        for (int i = 1; i <= uploaders; i++) {
+            Thread uploader = new Thread(this::upload, "result-uploader-" + i);
+            uploader.setDaemon(true);
+            uploader.start();
+        }
+        logger.info("Result upload queue started: capacity " + capacity + ", " + uploaders + " uploaders, policy " + policy
+                + ", batches of " + batchSize + " results or " + batchWindowMillis + " ms");
+    }
+
+    /**
+     * Journals a bundle for upload.
+     *
+     * @param source the analyzer the bundle came from, see
+     * {@link ResultDeduplicator#analyzerSource(String)}; null when it is not
+     * known, and then none of its results is treated as a duplicate
+     * @return false when the bundle could not be written, and the analyzer
+     * should be told to send it again if it still can be
+     */
+    public boolean submit(DataBundle bundle, String source) {
+        try {
+            if (journal.backlog() >= capacity) {
+                switch (policy) {
+                    case NAK:
+                        logger.warn("Result backlog full, spilling the results of a transfer already accepted");
+                        break;
+                    case SPILL:
+                        break;
+                    default:
+                        journal.awaitBacklogBelow(capacity);
+                        break;
+                }
+            }
+            journal.append(bundle, source);
+            return true;
+        } catch (IOException e) {
+            logger.error("Failed to journal results", e);
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Whether a new transfer should be accepted from the analyzer. Only the
+     * {@code NAK} policy refuses, while the backlog is full; the analyzer is
+     * told at the start of the transfer, while it can still send it again
+     * later.
+     */
+    public boolean isAcceptingTransfers() {
+        return policy != OverflowPolicy.NAK || journal.backlog() < capacity;
+    }
+
+    private void replay() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                queue.put(journal.next());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                logger.error("Result journal replay failed", e);
+            }
+        }
+    }
+
+    private void upload() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                for (List<ResultJournal.Entry> group : groupByPatient(collectBatch(queue.take()))) {
+                    uploadBatch(group);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                logger.error("Result upload failed", e);
+            }
+        }
+    }
+
+    /**
+     * Takes further entries from the queue until the batch holds
+     * {@code batchSize} results or the batch window has passed.
+     */
+    private List<ResultJournal.Entry> collectBatch(ResultJournal.Entry first) {
+        List<ResultJournal.Entry> batch = new ArrayList<>();
+        batch.add(first);
+        int results = first.getBundle().getResultsRecords().size();
+        long deadline = System.nanoTime() + batchWindowNanos;
+        while (results < batchSize) {
+            long remaining = deadline - System.nanoTime();
+            ResultJournal.Entry next = queue.poll();
+            if (next == null && remaining > 0) {
+                try {
+                    next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    // upload what has been taken so far, then stop
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (next == null) {
+                break;
+            }
+            batch.add(next);
+            results += next.getBundle().getResultsRecords().size();
+        }
+        return batch;
+    }
+
+    /**
+     * Splits a batch into the entries of each patient, in the order they came.
+     * A request carries a single patient record, so only the bundles of one
+     * patient can share a request.
+     */
+    private static Collection<List<ResultJournal.Entry>> groupByPatient(List<ResultJournal.Entry> batch) {
+        if (batch.size() == 1) {
+            return Collections.singletonList(batch);
+        }
+        Map<String, List<ResultJournal.Entry>> groups = new LinkedHashMap<>();
+        for (ResultJournal.Entry entry : batch) {
+            PatientRecord patient = entry.getBundle().getPatientRecord();
+            String key = patient == null ? "" : gson.toJson(patient);
+            groups.computeIfAbsent(key, k -> new ArrayList<>()).add(entry);
+        }
+        return groups.values();
+    }
+
+    /**
+     * Sends the entries of one patient until the LIS answers, then
+     * acknowledges them in the journal. Results that were already sent are left out, and results
+     * the LIS rejects are logged rather than sent again. A result counts as
+     * sent only once the LIS has taken it. A batch the LIS refuses as a whole
+     * is sent again one message at a time, and a single message it refuses
+     * goes to the dead-letter file.
+     */
+    private void uploadBatch(List<ResultJournal.Entry> batch) throws InterruptedException {
+        ResultDeduplicator deduplicator = ResultDeduplicator.getInstance();
+        Map<String, ResultsRecord> keyed = new LinkedHashMap<>();
+        for (ResultJournal.Entry entry : batch) {
+            entry.getBundle().getResultsRecords().removeIf(record -> {
+                String key = ResultDeduplicator.key(record, entry.getSource());
+                if (key == null) {
+                    return false;
+                }
+                if (keyed.containsKey(key) || deduplicator.wasSent(key)) {
+                    logger.info("Suppressed duplicate result " + record.getTestCode() + " of sample " + record.getSampleId()
+                            + " (" + deduplicator.getSuppressed() + " duplicates so far)");
+                    return true;
+                }
+                keyed.put(key, record);
+                return false;
+            });
+        }
+        DataBundle merged;
+        if (batch.size() == 1) {
+            merged = batch.get(0).getBundle();
+        } else {
+            merged = new DataBundle();
+            merged.setPatientRecord(batch.get(0).getBundle().getPatientRecord());
+            for (ResultJournal.Entry entry : batch) {
+                merged.getResultsRecords().addAll(entry.getBundle().getResultsRecords());
+                merged.getQueryRecords().addAll(entry.getBundle().getQueryRecords());
+            }
+        }
+        if (merged.getResultsRecords().isEmpty()) {
+            logger.debug("Nothing new in " + batch.size() + " messages");
+            acknowledge(batch);
+            return;
+        }
+        logger.debug("Uploading " + merged.getResultsRecords().size() + " results from " + batch.size() + " messages");
+        LISCommunicator.PushResult result = push(merged);
+        if (!result.isDelivered()) {
+            if (batch.size() > 1) {
+                // find the message the LIS refuses, rather than giving up on all of them
+                logger.warn("LIS refused a batch of " + batch.size() + " messages (" + result.getFailure() + "), sending them one at a time");
+                for (ResultJournal.Entry entry : batch) {
+                    uploadBatch(Collections.singletonList(entry));
+                }
+                return;
+            }
+            deadLetter(batch.get(0), result.getFailure());
+            return;
+        }
+        Set<String> rejectedTests = new HashSet<>();
+        for (ResultsRecord record : result.getRejected()) {
+            rejectedTests.add(record.getSampleId() + '\u001F' + record.getTestCode());
+            logger.error("LIS did not accept result " + record.getTestCode() + " of sample " + record.getSampleId()
+                    + (record.getStatus() == null ? "" : ": " + record.getStatus()));
+        }
+        for (Map.Entry<String, ResultsRecord> sent : keyed.entrySet()) {
+            if (!rejectedTests.contains(sent.getValue().getSampleId() + '\u001F' + sent.getValue().getTestCode())) {
+                deduplicator.markSent(sent.getKey());
+            }
+        }
+        Set<String> sampleIds = new HashSet<>();
+        for (ResultsRecord record : merged.getResultsRecords()) {
+            sampleIds.add(record.getSampleId());
+        }
+        OrderCache.getInstance().invalidateAll(sampleIds);
+        acknowledge(batch);
+    }
+
+    /**
+     * Sends the bundle until the LIS answers it, or fails in a way that
+     * sending it again will not change.
+     */
+    private LISCommunicator.PushResult push(DataBundle bundle) throws InterruptedException {
+        long retryMillis = MIN_RETRY_MILLIS;
+        LISCommunicator.PushResult result;
+        while ((result = lis.apply(bundle)).isRetryable()) {
+            logger.warn("LIS did not take " + bundle.getResultsRecords().size() + " results (" + result.getFailure() + "), "
+                    + journal.backlog() + " waiting in the journal, retrying in " + retryMillis + " ms");
+            Thread.sleep(retryMillis);
+            retryMillis = Math.min(retryMillis * 2, MAX_RETRY_MILLIS);
+        }
+        return result;
+    }
+
+    /**
+     * Moves a message the LIS refuses to the dead-letter file. The entry
+     * stays in the journal until that file has it.
+     */
+    private void deadLetter(ResultJournal.Entry entry, String reason) throws InterruptedException {
+        long retryMillis = MIN_RETRY_MILLIS;
+        while (true) {
+            try {
+                journal.deadLetter(entry, reason);
+                break;
+            } catch (IOException e) {
+                logger.error("Failed to write " + journal.getDeadLetterFile() + ", retrying in " + retryMillis + " ms", e);
+                Thread.sleep(retryMillis);
+                retryMillis = Math.min(retryMillis * 2, MAX_RETRY_MILLIS);
+            }
+        }
+        Set<String> sampleIds = new LinkedHashSet<>();
+        for (ResultsRecord record : entry.getBundle().getResultsRecords()) {
+            sampleIds.add(record.getSampleId());
+        }
+        logger.error("LIS REFUSED " + entry.getBundle().getResultsRecords().size() + " results of samples " + sampleIds
+                + " (" + reason + "); they will not be sent again and were moved to " + journal.getDeadLetterFile());
+    }
+
+    private void acknowledge(List<ResultJournal.Entry> batch) {
+        for (ResultJournal.Entry entry : batch) {
+            journal.acknowledge(entry.getPosition());
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package org.carecode.mw.lims.mw.MaglumiX3;
+
+/**
+ * Limits retries to a share of the calls made, so that retrying cannot
+ * multiply the load on a struggling LIS.
+ *
+ * Every first attempt deposits {@code ratio} of a retry, every retry
+ * withdraws a whole one. The balance starts at, and is never topped up
+ * beyond, {@code maxBalance}.
+ */
+public class RetryBudget {
+
+    private final double ratio;
+    private final double maxBalance;
+    private double balance;
+
+    public RetryBudget(double ratio, double maxBalance) {
+        this.ratio = ratio;
+        this.maxBalance = maxBalance;
+        this.balance = maxBalance;
+    }
+
+    public synchronized void recordAttempt() {
+        balance = Math.min(maxBalance, balance + ratio);
+    }
+
+    /**
+     * Takes one retry from the budget.
+     *
+     * @return false when the budget is spent and the call must not be retried
+     */
+    public synchronized boolean tryRetry() {
+        if (balance < 1) {
+            return false;
+        }
+        balance -= 1;
+        return true;
+    }
+}
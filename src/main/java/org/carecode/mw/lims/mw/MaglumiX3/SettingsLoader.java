@@ -1,6 +1,9 @@
 package org.carecode.mw.lims.mw.MaglumiX3;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import java.io.FileReader;
 import java.io.IOException;
 import java.nio.file.Files;
@@ -13,6 +16,7 @@ public class SettingsLoader {
 
     private static final Logger logger = LogManager.getLogger(SettingsLoader.class);
     private static MiddlewareSettings middlewareSettings;
+    private static JsonObject performanceSettings = new JsonObject();
 
     public static void loadSettings() {
         Gson gson = new Gson();
@@ -23,6 +27,12 @@ public class SettingsLoader {
             System.out.println("Contents of config.json:");
             System.out.println(jsonContent);
 
+            // Optional tuning block, not part of MiddlewareSettings
+            JsonElement performance = JsonParser.parseString(jsonContent).getAsJsonObject().get("performanceSettings");
+            if (performance != null && performance.isJsonObject()) {
+                performanceSettings = performance.getAsJsonObject();
+            }
+
             // Now parse the JSON content
             try (FileReader reader = new FileReader(filePath)) {
                 middlewareSettings = gson.fromJson(reader, MiddlewareSettings.class);
@@ -50,6 +60,22 @@ public class SettingsLoader {
         }
     }
 
+    /**
+     * Reads an optional entry of the "performanceSettings" block of
+     * config.json, falling back to the default when it is not configured.
+     */
+    public static String getPerformanceSetting(String name, String defaultValue) {
+        getSettings();
+        JsonElement value = performanceSettings.get(name);
+        return value == null || value.isJsonNull() ? defaultValue : value.getAsString();
+    }
+
+    public static long getPerformanceSetting(String name, long defaultValue) {
+        getSettings();
+        JsonElement value = performanceSettings.get(name);
+        return value == null || value.isJsonNull() ? defaultValue : value.getAsLong();
+    }
+
     public static MiddlewareSettings getSettings() {
         if (middlewareSettings == null) {
             loadSettings();
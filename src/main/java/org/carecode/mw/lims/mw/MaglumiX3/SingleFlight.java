@@ -0,0 +1,49 @@
+package org.carecode.mw.lims.mw.MaglumiX3;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Runs at most one call per key at a time. A caller asking for a key that
+ * is already being worked on gets the future of the running call instead of
+ * starting another one.
+ */
+public class SingleFlight<K, V> {
+
+    private final ConcurrentMap<K, CompletableFuture<V>> calls = new ConcurrentHashMap<>();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    public CompletableFuture<V> execute(K key, Supplier<CompletableFuture<V>> call) {
+        CompletableFuture<V> result = new CompletableFuture<>();
+        CompletableFuture<V> running = calls.putIfAbsent(key, result);
+        if (running != null) {
+            coalesced.incrementAndGet();
+            return running;
+        }
+        try {
+            call.get().whenComplete((value, error) -> {
+                // callers that come after this see a finished call and start anew
+                calls.remove(key, result);
+                if (error != null) {
+                    result.completeExceptionally(error);
+                } else {
+                    result.complete(value);
+                }
+            });
+        } catch (RuntimeException e) {
+            calls.remove(key, result);
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Number of callers that joined a call already running.
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+}
@@ -0,0 +1,55 @@
+package org.carecode.mw.lims.mw.MaglumiX3;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+class AstmFrameWriterTest {
+
+    @Test
+    void nonAsciiFieldIsOneBytePerCharacterAndChecksummed() throws Exception {
+        String record = "P|1||S1001||Müller^Zoë";
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new AstmFrameWriter(out).writeFrame(record);
+
+        byte[] body = record.getBytes(StandardCharsets.ISO_8859_1);
+        assertEquals(record.length(), body.length);
+        String checksum = MaglumiX3Server.calculateChecksum("\u0002" + record + "\r\u0003");
+        byte[] expected = concat(new byte[]{0x02}, body, new byte[]{0x0D, 0x03},
+                checksum.getBytes(StandardCharsets.US_ASCII), new byte[]{0x0D, 0x0A});
+        assertArrayEquals(expected, out.toByteArray());
+        assertEquals((byte) 0xFC, out.toByteArray()[1 + record.indexOf('ü')]);
+    }
+
+    @Test
+    void characterOutsideLatin1IsSentAsQuestionMark() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new AstmFrameWriter(out).writeFrame("R|1|^^^FER|12|€/L");
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        new AstmFrameWriter(expected).writeFrame("R|1|^^^FER|12|?/L");
+        assertArrayEquals(expected.toByteArray(), out.toByteArray());
+    }
+
+    @Test
+    void resendRepeatsTheFrame() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AstmFrameWriter writer = new AstmFrameWriter(out);
+        writer.writeFrame("P|1||S1001||Müller");
+        byte[] first = out.toByteArray();
+        out.reset();
+        writer.resend();
+        assertArrayEquals(first, out.toByteArray());
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream joined = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            joined.write(part, 0, part.length);
+        }
+        return joined.toByteArray();
+    }
+}
@@ -0,0 +1,46 @@
+package org.carecode.mw.lims.mw.MaglumiX3;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class AstmMessageIndexTest {
+
+    @Test
+    void recordWithFrameNumberIsTypedByItsLetter() {
+        AstmMessageIndex records = new AstmMessageIndex().scan("1R|1|^^^TSH|2.35|uIU/mL");
+
+        assertEquals(1, records.size());
+        assertEquals('R', records.type(0));
+        assertTrue(records.contains('R'));
+        assertEquals(0, records.start(0));
+        assertEquals("TSH", records.select(new AstmFieldCursor(), 0).component(2, 3));
+    }
+
+    @Test
+    void recordWithoutFrameNumberIsTypedTheSame() {
+        AstmMessageIndex records = new AstmMessageIndex().scan("Q|1|^S77||||20241018");
+
+        assertEquals(1, records.size());
+        assertEquals('Q', records.type(0));
+    }
+
+    @Test
+    void everyRecordOfAMessageIsIndexed() {
+        AstmMessageIndex records = new AstmMessageIndex().scan("1H|\\^&\r2P|1\r3O|1|S1\r4R|1|^^^TSH|2.3\r5L|1");
+
+        assertEquals(5, records.size());
+        assertEquals('O', records.type(records.first('O')));
+        assertEquals(3, records.first('R'));
+        assertFalse(records.contains('Q'));
+    }
+
+    @Test
+    void digitsWithoutRecordTypeAreNotARecord() {
+        AstmMessageIndex records = new AstmMessageIndex().scan("12|34");
+
+        assertEquals(0, records.size());
+    }
+}
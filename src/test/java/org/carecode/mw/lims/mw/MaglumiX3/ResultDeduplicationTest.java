@@ -0,0 +1,56 @@
+package org.carecode.mw.lims.mw.MaglumiX3;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.carecode.lims.libraries.DataBundle;
+import org.carecode.lims.libraries.ResultsRecord;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ResultDeduplicationTest {
+
+    private static final String RESULT_FRAME = "R|1|^^^TSH|2.35|uIU/mL|0.3-5.0|N||F||||20241018103000";
+
+    @TempDir
+    Path journalDirectory;
+
+    @Test
+    void astmResultSentTwiceIsUploadedOnce() throws Exception {
+        List<ResultsRecord> uploaded = Collections.synchronizedList(new ArrayList<>());
+        ResultJournal journal = new ResultJournal(journalDirectory, 1024 * 1024, 100);
+        ResultUploadQueue queue = new ResultUploadQueue(journal, 100, 1, ResultUploadQueue.OverflowPolicy.BLOCK, 200, 0, bundle -> {
+            uploaded.addAll(bundle.getResultsRecords());
+            return LISCommunicator.PushResult.delivered(new ArrayList<>());
+        });
+
+        // the analyzer did not get the ACK and sends the frame again after reconnecting
+        assertTrue(queue.submit(parse(RESULT_FRAME), "MaglumiX3"));
+        awaitUploaded(journal);
+        assertTrue(queue.submit(parse(RESULT_FRAME), "MaglumiX3"));
+        awaitUploaded(journal);
+
+        assertEquals(1, uploaded.size());
+        assertEquals("TSH", uploaded.get(0).getTestCode());
+        assertEquals("20241018103000", uploaded.get(0).getResultDateTime());
+    }
+
+    private static DataBundle parse(String frame) {
+        AstmFieldCursor fields = new AstmFieldCursor();
+        AstmMessageIndex records = new AstmMessageIndex().scan(frame);
+        // the sample comes from the O record of the previous frame
+        return MaglumiX3Server.parseResultMessage(records, fields, "DEDUP-1001", "MaglumiX3");
+    }
+
+    private static void awaitUploaded(ResultJournal journal) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (journal.backlog() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, journal.backlog());
+    }
+}